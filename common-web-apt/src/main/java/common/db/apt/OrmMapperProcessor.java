@@ -0,0 +1,428 @@
+package common.db.apt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an EntityMapper named &lt;Entity&gt;_OrmMapper for every class
+ * annotated with common.db.util.OrmEntity. Columns are the entity's non static
+ * fields, the same ones ORMClass finds by reflection, read and written
+ * directly when the mapper can see them and through getX/isX and setX
+ * otherwise.
+ */
+public class OrmMapperProcessor extends AbstractProcessor {
+	private static final String ORM_ENTITY = "common.db.util.OrmEntity";
+	private static final String COMPACT_ID = "common.db.util.CompactId";
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(ORM_ENTITY);
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ORM_ENTITY);
+		if(annotation == null)
+			return false;
+		for(Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+			if(element.getKind() != ElementKind.CLASS) {
+				error(element, "@OrmEntity only applies to classes");
+				continue;
+			}
+			try {
+				generate((TypeElement) element);
+			} catch (IOException e) {
+				error(element, "cannot write mapper: " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	private void generate(TypeElement entity) throws IOException {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(entity);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(entity).toString();
+		String mapperName = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1) + "_OrmMapper";
+		String type = processingEnv.getTypeUtils().erasure(entity.asType()).toString();
+
+		if(entity.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(entity, "@OrmEntity class must not be abstract");
+			return;
+		}
+		if(entity.getNestingKind().isNested() && !entity.getModifiers().contains(Modifier.STATIC)) {
+			error(entity, "@OrmEntity nested class must be static");
+			return;
+		}
+		if(!hasDefaultConstructor(entity, pkg)) {
+			error(entity, "@OrmEntity class needs a no argument constructor visible to its package");
+			return;
+		}
+
+		List<Column> columns = new ArrayList<Column>();
+		Set<String> names = new HashSet<String>();
+		for(TypeElement current = entity; current != null; current = superclass(current)) {
+			for(VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+				if(field.getModifiers().contains(Modifier.STATIC))
+					continue;
+				String name = field.getSimpleName().toString();
+				if(!names.add(name))
+					continue;
+				Column column = new Column(name, field.asType());
+				if(!resolveAccess(entity, pkg, field, column))
+					return;
+				columns.add(column);
+			}
+		}
+		if(columns.isEmpty()) {
+			error(entity, "@OrmEntity class has no fields");
+			return;
+		}
+
+		String table = tableName(entity);
+		StringBuilder columnList = new StringBuilder();
+		StringBuilder namedList = new StringBuilder();
+		StringBuilder setList = new StringBuilder();
+		Column id = null;
+		for(Column column : columns) {
+			if(columnList.length() > 0) {
+				columnList.append(",");
+				namedList.append(",");
+				setList.append(",");
+			}
+			columnList.append(column.name);
+			namedList.append(":").append(column.name);
+			setList.append(column.name).append("=:").append(column.name);
+			if(id == null && column.name.equalsIgnoreCase("id"))
+				id = column;
+		}
+		String values = " (" + columnList + ") values (" + namedList + ")";
+
+		StringBuilder src = new StringBuilder();
+		if(packageName.length() > 0)
+			src.append("package ").append(packageName).append(";\n\n");
+		src.append("// Generated by ").append(getClass().getName()).append(" from ").append(type).append(", do not edit.\n");
+		src.append("public class ").append(mapperName).append(" implements common.db.util.EntityMapper<").append(type).append("> {\n");
+		src.append("\tpublic static final String TABLE = ").append(quote(table)).append(";\n");
+		src.append("\tprivate static final String[] COLUMNS = {");
+		for(int i=0; i<columns.size(); i++) {
+			src.append(i == 0 ? "" : ", ").append(quote(columns.get(i).name));
+		}
+		src.append("};\n");
+		src.append("\tpublic static final String INSERT = ").append(quote("insert into " + table + values)).append(";\n");
+		src.append("\tpublic static final String INSERT_IGNORE = ").append(quote("insert ignore into " + table + values)).append(";\n");
+		src.append("\tpublic static final String REPLACE = ").append(quote("replace into " + table + values)).append(";\n");
+		src.append("\tpublic static final String UPDATE = ").append(quote("update " + table + " set " + setList + " where id=:id")).append(";\n");
+		for(int i=0; i<columns.size(); i++) {
+			Column column = columns.get(i);
+			if(column.kind == Kind.ENUM)
+				src.append("\tprivate static final ").append(column.typeName).append("[] VALUES_").append(i).append(" = ").append(column.typeName).append(".values();\n");
+		}
+		src.append("\n");
+
+		src.append("\t@Override\n\tpublic String getTableName() {\n\t\treturn TABLE;\n\t}\n\n");
+		src.append("\t@Override\n\tpublic String[] getColumns() {\n\t\treturn COLUMNS.clone();\n\t}\n\n");
+		src.append("\t@Override\n\tpublic String getInsertSql(boolean ignore) {\n\t\treturn ignore ? INSERT_IGNORE : INSERT;\n\t}\n\n");
+		src.append("\t@Override\n\tpublic String getReplaceSql() {\n\t\treturn REPLACE;\n\t}\n\n");
+		src.append("\t@Override\n\tpublic String getUpdateSql() {\n\t\treturn UPDATE;\n\t}\n\n");
+		src.append("\t@Override\n\tpublic ").append(type).append(" newInstance() {\n\t\treturn new ").append(type).append("();\n\t}\n\n");
+
+		src.append("\t@Override\n\tpublic int getFieldIndex(String label) {\n\t\tswitch (label) {\n");
+		for(int i=0; i<columns.size(); i++) {
+			src.append("\t\tcase ").append(quote(columns.get(i).name)).append(": return ").append(i).append(";\n");
+		}
+		src.append("\t\t}\n");
+		src.append("\t\tfor(int i=0; i<COLUMNS.length; i++) {\n\t\t\tif(COLUMNS[i].equalsIgnoreCase(label))\n\t\t\t\treturn i;\n\t\t}\n");
+		src.append("\t\treturn -1;\n\t}\n\n");
+
+		src.append("\t@Override\n\tpublic void read(").append(type).append(" obj, int fieldIndex, java.sql.ResultSet rs, int column) throws Exception {\n");
+		src.append("\t\tswitch (fieldIndex) {\n");
+		for(int i=0; i<columns.size(); i++) {
+			src.append("\t\tcase ").append(i).append(": {\n");
+			appendRead(src, columns.get(i), i);
+			src.append("\t\t\tbreak;\n\t\t}\n");
+		}
+		src.append("\t\tdefault:\n\t\t\tthrow new IndexOutOfBoundsException(String.valueOf(fieldIndex));\n\t\t}\n\t}\n\n");
+
+		src.append("\t@Override\n\tpublic void bind(").append(type).append(" obj, java.util.Map<String, Object> values) {\n");
+		for(Column column : columns) {
+			src.append("\t\t");
+			if(column.kind == Kind.ENUM || column.kind == Kind.COMPACT_ID) {
+				src.append("{\n\t\t\t").append(column.typeName).append(" value = ").append(column.get("obj")).append(";\n");
+				src.append("\t\t\tvalues.put(").append(quote(column.name)).append(", value == null ? null : value.")
+					.append(column.kind == Kind.ENUM ? "toString()" : "toBytes()").append(");\n\t\t}\n");
+			}
+			else {
+				src.append("values.put(").append(quote(column.name)).append(", ").append(column.get("obj")).append(");\n");
+			}
+		}
+		src.append("\t}\n\n");
+
+		src.append("\t@Override\n\tpublic Object getId(").append(type).append(" obj) {\n");
+		if(id == null)
+			src.append("\t\tthrow new UnsupportedOperationException(").append(quote(type + " has no id field")).append(");\n");
+		else
+			src.append("\t\treturn ").append(id.get("obj")).append(";\n");
+		src.append("\t}\n");
+		src.append("}\n");
+
+		String fileName = packageName.length() == 0 ? mapperName : packageName + "." + mapperName;
+		Writer writer = processingEnv.getFiler().createSourceFile(fileName, entity).openWriter();
+		try {
+			writer.write(src.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void appendRead(StringBuilder src, Column column, int index) {
+		String t = column.typeName;
+		switch (column.kind) {
+		case STRING:
+			src.append("\t\t\t").append(column.set("obj", "rs.getString(column)")).append(";\n");
+			break;
+		case INT:
+		case LONG:
+		case DOUBLE:
+		case FLOAT:
+			src.append("\t\t\t").append(t).append(" value = rs.").append(getter(column.kind)).append("(column);\n");
+			src.append("\t\t\tif(!rs.wasNull())\n\t\t\t\t").append(column.set("obj", "value")).append(";\n");
+			break;
+		case BOXED_INT:
+		case BOXED_LONG:
+		case BOXED_DOUBLE:
+		case BOXED_FLOAT: {
+			String primitive = column.kind == Kind.BOXED_INT ? "int" : column.kind == Kind.BOXED_LONG ? "long"
+					: column.kind == Kind.BOXED_DOUBLE ? "double" : "float";
+			src.append("\t\t\t").append(primitive).append(" value = rs.").append(getter(column.kind)).append("(column);\n");
+			src.append("\t\t\t").append(column.set("obj", "rs.wasNull() ? null : " + t + ".valueOf(value)")).append(";\n");
+			break;
+		}
+		case BIG_DECIMAL:
+			src.append("\t\t\t").append(column.set("obj", "rs.getBigDecimal(column)")).append(";\n");
+			break;
+		case COMPACT_ID:
+			src.append("\t\t\t").append(column.set("obj", COMPACT_ID + ".fromBytes(rs.getBytes(column))")).append(";\n");
+			break;
+		case DATE:
+			src.append("\t\t\tObject value = rs.getObject(column);\n");
+			src.append("\t\t\tif(value == null)\n\t\t\t\t").append(column.set("obj", "null")).append(";\n");
+			src.append("\t\t\telse if(value instanceof java.util.Date)\n\t\t\t\t")
+				.append(column.set("obj", "new java.util.Date(((java.util.Date) value).getTime())")).append(";\n");
+			src.append("\t\t\telse if(value instanceof Number)\n\t\t\t\t")
+				.append(column.set("obj", "((Number) value).longValue() == 0 ? null : new java.util.Date(((Number) value).longValue())")).append(";\n");
+			src.append("\t\t\telse\n\t\t\t\t")
+				.append(column.set("obj", "(java.util.Date) common.util.reflection.ReflectionUtil.convert(value.toString(), java.util.Date.class)")).append(";\n");
+			break;
+		case ENUM:
+			src.append("\t\t\tString value = rs.getString(column);\n");
+			src.append("\t\t\t").append(t).append(" match = null;\n");
+			src.append("\t\t\tif(value != null) {\n");
+			src.append("\t\t\t\tfor(").append(t).append(" e : VALUES_").append(index).append(") {\n");
+			src.append("\t\t\t\t\tif(e.toString().equals(value)) {\n\t\t\t\t\t\tmatch = e;\n\t\t\t\t\t\tbreak;\n\t\t\t\t\t}\n\t\t\t\t}\n");
+			src.append("\t\t\t\tif(match == null)\n\t\t\t\t\tthrow new RuntimeException(\"Unhandled data type: \" + value + \" for \" + ")
+				.append(t).append(".class);\n");
+			src.append("\t\t\t}\n");
+			src.append("\t\t\t").append(column.set("obj", "match")).append(";\n");
+			break;
+		default:
+			if(column.type.getKind().isPrimitive()) {
+				String boxed = processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) column.type).getQualifiedName().toString();
+				src.append("\t\t\tObject value = common.util.reflection.ReflectionUtil.convert(rs.getString(column), ").append(t).append(".class);\n");
+				src.append("\t\t\tif(value != null)\n\t\t\t\t").append(column.set("obj", "(" + boxed + ") value")).append(";\n");
+			}
+			else {
+				src.append("\t\t\t").append(column.set("obj", "(" + t + ") common.util.reflection.ReflectionUtil.convert(rs.getString(column), " + t + ".class)")).append(";\n");
+			}
+		}
+	}
+
+	private static String getter(Kind kind) {
+		switch (kind) {
+		case INT:
+		case BOXED_INT:
+			return "getInt";
+		case LONG:
+		case BOXED_LONG:
+			return "getLong";
+		case DOUBLE:
+		case BOXED_DOUBLE:
+			return "getDouble";
+		default:
+			return "getFloat";
+		}
+	}
+
+	private boolean resolveAccess(TypeElement entity, PackageElement pkg, VariableElement field, Column column) {
+		if(field.getModifiers().contains(Modifier.FINAL)) {
+			error(field, "final field " + column.name + " cannot be mapped");
+			return false;
+		}
+		if(isVisible(field, pkg) && isVisible(field.getEnclosingElement(), pkg)) {
+			column.getter = "." + column.name;
+			column.setter = "." + column.name + " = ";
+		}
+		String capitalized = Character.toUpperCase(column.name.charAt(0)) + column.name.substring(1);
+		for(TypeElement current = entity; current != null && (column.getter == null || column.setter == null); current = superclass(current)) {
+			for(ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+				if(method.getModifiers().contains(Modifier.STATIC) || !isVisible(method, pkg))
+					continue;
+				String name = method.getSimpleName().toString();
+				if(column.getter == null && method.getParameters().isEmpty()
+						&& (name.equals("get" + capitalized) || name.equals("is" + capitalized))
+						&& processingEnv.getTypeUtils().isSameType(method.getReturnType(), column.type)) {
+					column.getter = "." + name + "()";
+				}
+				else if(column.setter == null && name.equals("set" + capitalized) && method.getParameters().size() == 1
+						&& processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), column.type)) {
+					column.setter = "." + name + "(";
+				}
+			}
+		}
+		if(column.getter == null || column.setter == null) {
+			error(field, "field " + column.name + " is neither visible to " + entity.getSimpleName() + "_OrmMapper nor has a visible getter and setter");
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isVisible(Element element, PackageElement pkg) {
+		Set<Modifier> modifiers = element.getModifiers();
+		if(modifiers.contains(Modifier.PUBLIC))
+			return true;
+		if(modifiers.contains(Modifier.PRIVATE))
+			return false;
+		return processingEnv.getElementUtils().getPackageOf(element).equals(pkg);
+	}
+
+	private boolean hasDefaultConstructor(TypeElement entity, PackageElement pkg) {
+		for(ExecutableElement constructor : ElementFilter.constructorsIn(entity.getEnclosedElements())) {
+			if(constructor.getParameters().isEmpty())
+				return isVisible(constructor, pkg);
+		}
+		return false;
+	}
+
+	private TypeElement superclass(TypeElement type) {
+		TypeMirror superclass = type.getSuperclass();
+		if(superclass.getKind() != TypeKind.DECLARED)
+			return null;
+		TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+		return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+	}
+
+	private String tableName(TypeElement entity) {
+		for(AnnotationMirror mirror : entity.getAnnotationMirrors()) {
+			if(!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(ORM_ENTITY))
+				continue;
+			for(java.util.Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+				if(entry.getKey().getSimpleName().contentEquals("table")) {
+					String table = entry.getValue().getValue().toString();
+					if(table.length() > 0)
+						return table;
+				}
+			}
+		}
+		return entity.getSimpleName().toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private enum Kind {
+		STRING, INT, BOXED_INT, LONG, BOXED_LONG, DOUBLE, BOXED_DOUBLE, FLOAT, BOXED_FLOAT,
+		BIG_DECIMAL, DATE, ENUM, COMPACT_ID, CONVERT
+	}
+
+	private class Column {
+		private final String name;
+		private final TypeMirror type;
+		private final String typeName;
+		private final Kind kind;
+		private String getter;
+		private String setter;
+
+		public Column(String name, TypeMirror type) {
+			this.name = name;
+			this.type = type;
+			this.typeName = processingEnv.getTypeUtils().erasure(type).toString();
+			this.kind = kindOf(type, typeName);
+		}
+
+		private String get(String obj) {
+			return obj + getter;
+		}
+
+		private String set(String obj, String value) {
+			return setter.endsWith("(") ? obj + setter + value + ")" : obj + setter + value;
+		}
+
+		private Kind kindOf(TypeMirror type, String typeName) {
+			switch (type.getKind()) {
+			case INT:
+				return Kind.INT;
+			case LONG:
+				return Kind.LONG;
+			case DOUBLE:
+				return Kind.DOUBLE;
+			case FLOAT:
+				return Kind.FLOAT;
+			case DECLARED:
+				if(((DeclaredType) type).asElement().getKind() == ElementKind.ENUM)
+					return Kind.ENUM;
+				break;
+			default:
+				return Kind.CONVERT;
+			}
+			if(typeName.equals("java.lang.String"))
+				return Kind.STRING;
+			if(typeName.equals("java.lang.Integer"))
+				return Kind.BOXED_INT;
+			if(typeName.equals("java.lang.Long"))
+				return Kind.BOXED_LONG;
+			if(typeName.equals("java.lang.Double"))
+				return Kind.BOXED_DOUBLE;
+			if(typeName.equals("java.lang.Float"))
+				return Kind.BOXED_FLOAT;
+			if(typeName.equals("java.math.BigDecimal"))
+				return Kind.BIG_DECIMAL;
+			if(typeName.equals("java.util.Date"))
+				return Kind.DATE;
+			if(typeName.equals(COMPACT_ID))
+				return Kind.COMPACT_ID;
+			return Kind.CONVERT;
+		}
+	}
+}
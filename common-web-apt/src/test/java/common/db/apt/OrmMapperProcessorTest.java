@@ -0,0 +1,192 @@
+package common.db.apt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import common.db.util.ORMClass;
+
+/**
+ * Compiles a sample entity with and without the processor and checks that the
+ * generated mapper and reflection agree on columns, bound values and the rows
+ * they read back from H2.
+ */
+public class OrmMapperProcessorTest extends TestCase {
+	private static final String BASE =
+			"package sample;\n" +
+			"public class Base {\n" +
+			"	public String name;\n" +
+			"	public long extra;\n" +
+			"}\n";
+
+	private static final String SAMPLE =
+			"package sample;\n" +
+			"@common.db.util.OrmEntity(table = \"sample\")\n" +
+			"public class Sample extends Base {\n" +
+			"	public enum Status { NEW, DONE }\n" +
+			"	public static int instances;\n" +
+			"	public String id;\n" +
+			"	public String name;\n" +
+			"	public long created;\n" +
+			"	public long updated;\n" +
+			"	public int score;\n" +
+			"	public Long boxed;\n" +
+			"	public double ratio;\n" +
+			"	public java.util.Date seen;\n" +
+			"	public Status status;\n" +
+			"	private String hidden;\n" +
+			"	public String getHidden() { return hidden; }\n" +
+			"	public void setHidden(String hidden) { this.hidden = hidden; }\n" +
+			"	public static Sample sample(String id) {\n" +
+			"		Sample s = new Sample();\n" +
+			"		s.id = id;\n" +
+			"		s.name = \"sub\";\n" +
+			"		((Base) s).name = \"base\";\n" +
+			"		s.extra = 7;\n" +
+			"		s.score = 42;\n" +
+			"		s.boxed = 9000000000L;\n" +
+			"		s.ratio = 0.25;\n" +
+			"		s.seen = new java.util.Date(1400000000000L);\n" +
+			"		s.status = Status.DONE;\n" +
+			"		s.hidden = \"secret\";\n" +
+			"		return s;\n" +
+			"	}\n" +
+			"}\n";
+
+	private static final String TABLE = "create table sample(id varchar(64) primary key, name varchar(64), extra bigint, created bigint, updated bigint,"
+			+ " score int, boxed bigint, ratio double, seen timestamp, status varchar(16), hidden varchar(64))";
+
+	private File dir;
+	private ORMClass<Object> plain;
+	private ORMClass<Object> generated;
+	private Class<?> plainClass;
+	private Class<?> generatedClass;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "orm-apt-" + System.nanoTime());
+		File src = new File(dir, "src/sample");
+		src.mkdirs();
+		write(new File(src, "Base.java"), BASE);
+		write(new File(src, "Sample.java"), SAMPLE);
+		plainClass = compile("plain", false);
+		generatedClass = compile("apt", true);
+		plain = new ORMClass<Object>((Class<Object>) plainClass);
+		generated = new ORMClass<Object>((Class<Object>) generatedClass);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	public void testMapperIsGenerated() {
+		assertNull(plain.getMapper());
+		assertNotNull(generated.getMapper());
+	}
+
+	public void testSameColumns() {
+		assertEquals("sample", generated.getTableName());
+		assertEquals(plain.getTableName(), generated.getTableName());
+		assertEquals(columns(plain.getColumns()), columns(generated.getColumns()));
+		assertFalse(columns(plain.getColumns()).contains("instances"));
+		assertEquals(columns(plain.getNamedInsertStmt(false)), columns(generated.getNamedInsertStmt(false)));
+	}
+
+	public void testSameValues() throws Exception {
+		Map<String, Object> expected = plain.getValueMap(sample(plainClass, "a"));
+		Map<String, Object> actual = generated.getValueMap(sample(generatedClass, "a"));
+		assertEquals(expected, actual);
+		assertEquals("sub", actual.get("name"));
+		assertEquals("secret", actual.get("hidden"));
+	}
+
+	public void testSameRows() throws Exception {
+		DriverManagerDataSource ds = new DriverManagerDataSource("jdbc:h2:mem:" + dir.getName() + ";DB_CLOSE_DELAY=-1;MODE=MySQL", "sa", "");
+		new JdbcTemplate(ds).execute(TABLE);
+		NamedParameterJdbcTemplate jc = new NamedParameterJdbcTemplate(ds);
+		plain.insert(jc, sample(plainClass, "p"), false);
+		generated.insert(jc, sample(generatedClass, "g"), false);
+
+		for(String id : Arrays.asList("p", "g")) {
+			Object viaPlain = plain.getById(jc, id);
+			Object viaGenerated = generated.getById(jc, id);
+			Map<String, Object> expected = plain.getValueMap(viaPlain);
+			Map<String, Object> actual = generated.getValueMap(viaGenerated);
+			expected.remove("created");
+			expected.remove("updated");
+			actual.remove("created");
+			actual.remove("updated");
+			assertEquals(expected, actual);
+			assertEquals(plain.getValueMap(viaPlain).get("created"), generated.getValueMap(viaGenerated).get("created"));
+		}
+		new JdbcTemplate(ds).execute("drop table sample");
+	}
+
+	private Class<?> compile(String name, boolean process) throws Exception {
+		File out = new File(dir, name);
+		out.mkdirs();
+		List<String> args = new ArrayList<String>();
+		args.addAll(Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", out.getPath(), "-source", "1.8", "-target", "1.8", "-nowarn"));
+		if(process)
+			args.addAll(Arrays.asList("-processor", OrmMapperProcessor.class.getName(), "-s", out.getPath()));
+		else
+			args.add("-proc:none");
+		args.add(new File(dir, "src/sample/Base.java").getPath());
+		args.add(new File(dir, "src/sample/Sample.java").getPath());
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("tests need a JDK", compiler);
+		assertEquals(0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+		assertEquals(process, new File(out, "sample/Sample_OrmMapper.class").exists());
+		ClassLoader loader = new URLClassLoader(new URL[] {out.toURI().toURL()}, getClass().getClassLoader());
+		return Class.forName("sample.Sample", true, loader);
+	}
+
+	private static Object sample(Class<?> cls, String id) throws Exception {
+		return cls.getMethod("sample", String.class).invoke(null, id);
+	}
+
+	private static Set<String> columns(String sql) {
+		int open = sql.indexOf('(');
+		String list = open < 0 ? sql : sql.substring(open + 1, sql.indexOf(')'));
+		return new HashSet<String>(Arrays.asList(list.replace(" ", "").split(",")));
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,57 @@
+package common.db.shard;
+
+public class Aggregate {
+	public static enum Function {
+		COUNT,
+		SUM,
+		MIN,
+		MAX,
+		AVG
+	}
+	
+	private Function function;
+	private String column;
+	private String alias;
+	
+	public Aggregate(Function function, String column, String alias) {
+		this.function = function;
+		this.column = column;
+		this.alias = alias;
+	}
+	
+	public static Aggregate count(String alias) {
+		return new Aggregate(Function.COUNT, "*", alias);
+	}
+	
+	public static Aggregate count(String column, String alias) {
+		return new Aggregate(Function.COUNT, column, alias);
+	}
+	
+	public static Aggregate sum(String column, String alias) {
+		return new Aggregate(Function.SUM, column, alias);
+	}
+	
+	public static Aggregate min(String column, String alias) {
+		return new Aggregate(Function.MIN, column, alias);
+	}
+	
+	public static Aggregate max(String column, String alias) {
+		return new Aggregate(Function.MAX, column, alias);
+	}
+	
+	public static Aggregate avg(String column, String alias) {
+		return new Aggregate(Function.AVG, column, alias);
+	}
+
+	public Function getFunction() {
+		return function;
+	}
+
+	public String getColumn() {
+		return column;
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+}
@@ -0,0 +1,213 @@
+package common.db.shard;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites a list of aggregates into per-shard partial aggregates and merges
+ * the partial rows coming back from the shards. AVG travels as a sum and a
+ * count and is only divided after the merge. A group by entry is either a
+ * plain column name or "expression as alias"; rows are grouped on the
+ * expression and keyed on the alias.
+ */
+public class AggregateMerger {
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+	private static final Pattern ALIASED = Pattern.compile("(.+?)\\s+as\\s+([A-Za-z_][A-Za-z0-9_]*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	
+	private List<Aggregate> aggregates;
+	private String[] groupBy;
+	private String[] groupExpressions;
+	private Map<List<Object>, Object[]> groups = new LinkedHashMap<List<Object>, Object[]>();
+	
+	public AggregateMerger(List<Aggregate> aggregates, String[] groupBy) {
+		this.aggregates = aggregates;
+		String[] entries = groupBy == null ? new String[0] : groupBy;
+		this.groupBy = new String[entries.length];
+		this.groupExpressions = new String[entries.length];
+		for(int i=0; i<entries.length; i++) {
+			String entry = entries[i].trim();
+			Matcher aliased = ALIASED.matcher(entry);
+			if(aliased.matches()) {
+				this.groupExpressions[i] = aliased.group(1).trim();
+				this.groupBy[i] = aliased.group(2);
+			}
+			else if(IDENTIFIER.matcher(entry).matches()) {
+				this.groupExpressions[i] = entry;
+				this.groupBy[i] = entry;
+			}
+			else {
+				throw new IllegalArgumentException("group by must be a column name or \"expression as alias\": " + entries[i]);
+			}
+		}
+	}
+	
+	public String getShardSql(String tableName, String where) {
+		StringBuilder sql = new StringBuilder("select ");
+		for(int i=0; i<groupBy.length; i++) {
+			if(groupExpressions[i].equals(groupBy[i]))
+				sql.append(groupBy[i]).append(",");
+			else
+				sql.append(groupExpressions[i]).append(" as ").append(groupBy[i]).append(",");
+		}
+		for(int i=0; i<aggregates.size(); i++) {
+			Aggregate aggregate = aggregates.get(i);
+			if(i > 0)
+				sql.append(",");
+			switch (aggregate.getFunction()) {
+			case COUNT:
+				sql.append("count(").append(aggregate.getColumn()).append(") as p").append(i);
+				break;
+			case SUM:
+				sql.append("sum(").append(aggregate.getColumn()).append(") as p").append(i);
+				break;
+			case MIN:
+				sql.append("min(").append(aggregate.getColumn()).append(") as p").append(i);
+				break;
+			case MAX:
+				sql.append("max(").append(aggregate.getColumn()).append(") as p").append(i);
+				break;
+			case AVG:
+				sql.append("sum(").append(aggregate.getColumn()).append(") as p").append(i);
+				sql.append(",count(").append(aggregate.getColumn()).append(") as c").append(i);
+				break;
+			}
+		}
+		sql.append(" from ").append(tableName);
+		if(where != null && where.trim().length() > 0)
+			sql.append(" where ").append(where);
+		if(groupBy.length > 0) {
+			sql.append(" group by ");
+			for(int i=0; i<groupBy.length; i++) {
+				if(i > 0)
+					sql.append(",");
+				sql.append(groupExpressions[i]);
+			}
+		}
+		return sql.toString();
+	}
+	
+	public synchronized void merge(List<Map<String, Object>> partials) {
+		for(Map<String, Object> row : partials) {
+			List<Object> key = new ArrayList<Object>(groupBy.length);
+			for(String column : groupBy) {
+				key.add(row.get(column));
+			}
+			Object[] state = groups.get(key);
+			if(state == null) {
+				state = new Object[aggregates.size() * 2];
+				groups.put(key, state);
+			}
+			for(int i=0; i<aggregates.size(); i++) {
+				Object value = row.get("p" + i);
+				switch (aggregates.get(i).getFunction()) {
+				case COUNT:
+				case SUM:
+					state[2*i] = add(state[2*i], value);
+					break;
+				case MIN:
+					if(state[2*i] == null || (value != null && compare(value, state[2*i]) < 0))
+						state[2*i] = value;
+					break;
+				case MAX:
+					if(state[2*i] == null || (value != null && compare(value, state[2*i]) > 0))
+						state[2*i] = value;
+					break;
+				case AVG:
+					state[2*i] = add(state[2*i], value);
+					state[2*i+1] = add(state[2*i+1], row.get("c" + i));
+					break;
+				}
+			}
+		}
+	}
+	
+	public synchronized List<Map<String, Object>> getResult() {
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>(groups.size());
+		for(Map.Entry<List<Object>, Object[]> entry : groups.entrySet()) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			for(int i=0; i<groupBy.length; i++) {
+				row.put(groupBy[i], entry.getKey().get(i));
+			}
+			Object[] state = entry.getValue();
+			for(int i=0; i<aggregates.size(); i++) {
+				Aggregate aggregate = aggregates.get(i);
+				switch (aggregate.getFunction()) {
+				case COUNT:
+					row.put(aggregate.getAlias(), state[2*i] == null ? 0L : state[2*i]);
+					break;
+				case AVG:
+					row.put(aggregate.getAlias(), divide(state[2*i], state[2*i+1]));
+					break;
+				default:
+					row.put(aggregate.getAlias(), state[2*i]);
+				}
+			}
+			result.add(row);
+		}
+		return result;
+	}
+	
+	private static Object add(Object a, Object b) {
+		if(a == null)
+			return b == null ? null : normalize((Number) b);
+		if(b == null)
+			return a;
+		Number x = (Number) a;
+		Number y = (Number) b;
+		if(isDecimal(x) || isDecimal(y))
+			return toBigDecimal(x).add(toBigDecimal(y));
+		if(isFloating(x) || isFloating(y))
+			return x.doubleValue() + y.doubleValue();
+		return x.longValue() + y.longValue();
+	}
+	
+	private static Object divide(Object sum, Object count) {
+		if(sum == null || count == null || ((Number) count).longValue() == 0)
+			return null;
+		Number s = (Number) sum;
+		long c = ((Number) count).longValue();
+		if(isDecimal(s))
+			return toBigDecimal(s).divide(BigDecimal.valueOf(c), MathContext.DECIMAL64);
+		return s.doubleValue() / c;
+	}
+	
+	private static Number normalize(Number n) {
+		if(isDecimal(n))
+			return toBigDecimal(n);
+		if(isFloating(n))
+			return n.doubleValue();
+		return n.longValue();
+	}
+	
+	private static boolean isDecimal(Number n) {
+		return n instanceof BigDecimal || n instanceof BigInteger;
+	}
+	
+	private static boolean isFloating(Number n) {
+		return n instanceof Double || n instanceof Float;
+	}
+	
+	private static BigDecimal toBigDecimal(Number n) {
+		if(n instanceof BigDecimal)
+			return (BigDecimal) n;
+		if(n instanceof BigInteger)
+			return new BigDecimal((BigInteger) n);
+		if(isFloating(n))
+			return BigDecimal.valueOf(n.doubleValue());
+		return BigDecimal.valueOf(n.longValue());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		if(a instanceof Number && b instanceof Number && a.getClass() != b.getClass())
+			return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+}
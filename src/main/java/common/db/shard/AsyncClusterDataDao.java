@@ -0,0 +1,20 @@
+package common.db.shard;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncClusterDataDao<T> {
+	CompletableFuture<T> getAsync(String id);
+	CompletableFuture<List<T>> getAsync(List<String> ids);
+	CompletableFuture<Set<String>> existingIdsAsync(List<String> ids);
+	CompletableFuture<Void> replaceAsync(T data);
+	CompletableFuture<Void> replaceAsync(List<T> data);
+	CompletableFuture<Void> removeAsync(String id);
+	CompletableFuture<Void> removeAsync(List<String> ids);
+	CompletableFuture<List<T>> queryAllShardsAsync(String sql, Object[] args);
+	CompletableFuture<List<T>> queryAllShardsAsync(String sql, Map<String, Object> params);
+	CompletableFuture<Void> updateAllShardsAsync(String sql, Object[] args);
+	CompletableFuture<Void> updateAllShardsAsync(String sql, Map<String, Object> params);
+}
@@ -1,6 +1,7 @@
 package common.db.shard;
 
 import java.io.OutputStream;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -9,6 +10,7 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
+import common.db.util.ExportFormat;
 import common.db.util.ORMClass;
 import common.db.util.RowMapped;
 
@@ -17,9 +19,11 @@ public interface ClusterDataDao<T> {
 	int getShardSize();
 	void replace(T data);
 	void replace(List<T> data);
+	void flush();
 	T get(String id);
 	List<T> getAll(String id);
 	List<T> get(List<String> id);
+	PartialResult<T> get(List<String> ids, Deadline deadline);
 	Set<String> existingIds(List<String> ids);
 	Set<String> nonexistingIds(List<String> ids);
 	void dump(ObjectDumper od);
@@ -27,6 +31,8 @@ public interface ClusterDataDao<T> {
 	void dump(RowMapped<T> rows);
 	void dump(String sql, RowMapped<T> rows);
 	void dump(String sql, RowMapper<T> rows);
+	void dumpParallel(ObjectDumper od);
+	void dumpParallel(String sql, RowMapped<T> rows);
 	JdbcTemplate getJdbcTemplate(int shardId);
 	NamedParameterJdbcTemplate getNamedJdbcTemplate(int shardId);
 	JdbcTemplate getJdbcTemplateForId(String id);
@@ -34,6 +40,7 @@ public interface ClusterDataDao<T> {
 	void remove(String id);
 	void remove(List<String> ids);
 	void query(OutputStream outputStream, String sql);
+	void query(OutputStream outputStream, String sql, ExportFormat format, boolean interleaved);
 	ORMClass<T> getOrmClass();
 	List<T> queryAllShards(String sql, Object[] args);
 	List<T> queryAllShards(String sql, Map<String, Object> params);
@@ -41,6 +48,12 @@ public interface ClusterDataDao<T> {
 	void queryAllShards(String sql, RowMapper<T> rows, Map<String, Object> params);
 	void queryAllShards(String sql, RowMapped<T> rows, Object[] args);
 	void queryAllShards(String sql, RowMapped<T> rows, Map<String, Object> params);
+	PartialResult<T> queryAllShards(String sql, Object[] args, Deadline deadline);
+	List<T> queryAllShards(String sql, Object[] args, Comparator<T> comparator, int limit);
+	List<T> queryAllShards(String sql, Map<String, Object> params, Comparator<T> comparator, int limit);
+	List<T> queryAllShards(String sql, Object[] args, String orderBy, boolean desc, int limit);
+	List<T> queryAllShards(String sql, Map<String, Object> params, String orderBy, boolean desc, int limit);
+	List<Map<String, Object>> aggregate(List<Aggregate> aggregates, String[] groupBy, String where, Map<String, Object> params);
 	void updateAllShards(String sql, Object[] args);
 	void updateAllShards(String sql, Map<String, Object> params);
 	void updateAllShards(String sql, List<Object[]> args);
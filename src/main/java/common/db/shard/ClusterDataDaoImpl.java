@@ -1,33 +1,108 @@
 package common.db.shard;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
 
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
+import common.db.util.ExportFormat;
 import common.db.util.ORMClass;
+import common.db.util.ResultSetEncoder;
 import common.db.util.RowMapped;
+import common.db.util.StreamingJdbcTemplate;
+import common.util.BloomFilter;
+import common.util.CacheUtil;
+import common.util.LatencyTracker;
 import common.util.MultiTask;
+import common.util.ObjectCache;
 import common.util.reflection.ReflectionUtil;
 
-public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
+public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T>, AsyncClusterDataDao<T> {
 	abstract public ShardedDataSource getShardedDataSource();
 	abstract public ShardResolver getShardResolver();
 	
 	private ExecutorService executorService;
+	private int batchSize = 500;
+	private int dumpFetchSize = 1000;
+	private int dumpQueueSize = 10000;
+	private int mergeQueueSize = 64;
+	private int exportChunkSize = 64 * 1024;
+	private ObjectCache entityCache;
+	private final AtomicLongArray cacheGenerations = new AtomicLongArray(1024);
+	private final AtomicLong cacheEpoch = new AtomicLong();
+	private int inListSize = 1000;
+	private int inListParallelism = 4;
+	private volatile BloomFilter[] idFilters;
+	private volatile List<Queue<String>> idFilterLogs;
+	private final AtomicLong idFilterEpoch = new AtomicLong();
+	private long idFilterExpectedInsertions = 1000000;
+	private ShardedDataSource hedgeDataSource;
+	private ScheduledExecutorService hedgeScheduler;
+	private LatencyTracker shardLatency;
+	private double idFilterFpp = 0.01;
+	private long idFilterRescanMarginMillis = 60000;
+	private long readYourWritesMillis;
+	private ShardBulkhead shardBulkhead;
+	private ShardMetrics metrics = NoOpShardMetrics.INSTANCE;
+	private long writeBehindMillis;
+	private int writeBehindMaxPending = 100000;
+	private final ConcurrentHashMap<Integer, Map<String, T>> pendingWrites = new ConcurrentHashMap<Integer, Map<String, T>>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private ScheduledExecutorService writeBehindScheduler;
+	private final ConcurrentHashMap<Integer, ReentrantLock> flushLocks = new ConcurrentHashMap<Integer, ReentrantLock>();
+	private final AtomicLong flushFailures = new AtomicLong();
+	private volatile RuntimeException lastFlushFailure;
+	private final ThreadLocal<ConsistencySession> sessions = new ThreadLocal<ConsistencySession>();
 	
 	protected ORMClass<T> orm;
 	
@@ -42,79 +117,551 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 	
 	@Override
 	public void replace(T data) {
+		if(writeBehindMillis > 0) {
+			bufferWrites(splitByShard(Collections.singletonList(data)));
+			return;
+		}
 		int shardId = getShardResolver().getShardId(orm.getObjectId(data));
-		NamedParameterJdbcTemplate jc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+		NamedParameterJdbcTemplate jc = getWriteNamedJdbcTemplate(shardId);
 		if(orm.isReplaceSupported()) {
 			orm.replace(jc, data);
 		}
 		else {
-			T db = get(orm.getObjectId(data));
-			if(db == null) {
+			String sql = "select id from " + orm.getTableName() + " where id = :id";
+			if(jc.query(sql, Collections.singletonMap("id", orm.toIdParam(orm.getObjectId(data))), orm.getIdRowMapper()).isEmpty()) {
 				orm.insert(jc, data, true);
 			}
 			else {
 				orm.updateEntity(jc, data, null);
 			}
 		}
+		recordWrite(shardId);
+		rememberId(shardId, orm.getObjectId(data));
+		int mirror = getMirrorShardId(orm.getObjectId(data));
+		if(mirror >= 0)
+			replaceInShard(mirror, Collections.singletonList(data));
+		evict(orm.getObjectId(data));
 	}
 
 	@Override
 	public void replace(List<T> data) {
-		for(T t : data) {
-			try {
-				replace(t);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
+		final Map<Integer, List<T>> shardedData = splitByShard(data);
+		if(writeBehindMillis > 0) {
+			bufferWrites(shardedData);
+			return;
+		}
+		
+		ShardRunnable runnable = new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				replaceInShard(shardId, shardedData.get(shardId));
+			}
+		};
+		
+		MultiTask mt = new MultiTask();
+		for(Entry<Integer, List<T>> entry : shardedData.entrySet()) {
+			int shardId = entry.getKey();
+			ShardTask shardTask = newShardTask("replace", shardId, runnable);
+			mt.addTask(shardTask);
+		}
+		metrics.recordFanOut("replace", mt.size());
+		mt.execute(executorService);
+	}
+	
+	/**
+	 * Rows of entities this shard only mirrors during a migration are updated
+	 * in full: the mirrored row may lag what the entity was loaded from, and
+	 * the primary write has already taken the entity's dirty snapshot.
+	 */
+	protected void replaceInShard(int shardId, List<T> data) {
+		NamedParameterJdbcTemplate jc = getWriteNamedJdbcTemplate(shardId);
+		for(int from=0; from<data.size(); from+=batchSize) {
+			List<T> chunk = data.subList(from, Math.min(data.size(), from + batchSize));
+			if(orm.isReplaceSupported()) {
+				orm.batchReplace(jc, chunk);
+				continue;
+			}
+			
+			Map<String, T> latest = new LinkedHashMap<String, T>();
+			for(T t : chunk) {
+				latest.put(orm.getObjectId(t), t);
+			}
+			String sql = "select id from " + orm.getTableName() + " where id in (:ids)";
+			Set<String> existing = new HashSet<String>(jc.query(sql, Collections.singletonMap("ids", orm.toIdParams(latest.keySet())), orm.getIdRowMapper()));
+			List<T> inserts = new ArrayList<T>();
+			List<T> updates = new ArrayList<T>();
+			List<T> mirrorUpdates = new ArrayList<T>();
+			for(Entry<String, T> entry : latest.entrySet()) {
+				if(!existing.contains(entry.getKey()))
+					inserts.add(entry.getValue());
+				else if(getShardResolver().getShardId(entry.getKey()) != shardId)
+					mirrorUpdates.add(entry.getValue());
+				else
+					updates.add(entry.getValue());
+			}
+			orm.batchInsert(jc, inserts, true);
+			orm.batchUpdateEntity(jc, updates);
+			orm.batchUpdateAll(jc, mirrorUpdates);
+		}
+		recordWrite(shardId);
+		if(idFilters != null || idFilterLogs != null) {
+			for(T t : data) {
+				rememberId(shardId, orm.getObjectId(t));
+			}
+		}
+		metrics.recordRows("replace", shardId, data.size());
+		if(entityCache != null) {
+			for(T t : data) {
+				evict(orm.getObjectId(t));
+			}
+		}
+	}
+	
+	/**
+	 * Write-behind: keeps only the last value per id until the shard is flushed
+	 * because it holds batchSize ids, the flush timer fires, or the dao holds
+	 * writeBehindMaxPending ids in total. The first and last cases flush in the
+	 * calling thread; the last one waits for flushes in progress, which slows
+	 * writers down to the speed of the database. It flushes before buffering,
+	 * so while the database fails writes are rejected with the flush's error
+	 * instead of growing the buffer.
+	 */
+	protected void bufferWrites(Map<Integer, List<T>> shardedData) {
+		startWriteBehind();
+		if(pendingCount.get() >= writeBehindMaxPending)
+			flush();
+		for(Entry<Integer, List<T>> entry : shardedData.entrySet()) {
+			Map<String, T> pending = getPendingWrites(entry.getKey());
+			for(T t : entry.getValue()) {
+				String id = orm.getObjectId(t);
+				if(pending.put(id, t) == null)
+					pendingCount.incrementAndGet();
+				evict(id);
+			}
+			if(pending.size() >= batchSize)
+				flushShard(entry.getKey(), false);
+		}
+	}
+	
+	@Override
+	public void flush() {
+		for(int shardId : new ArrayList<Integer>(pendingWrites.keySet())) {
+			flushShard(shardId);
+		}
+	}
+	
+	/**
+	 * Writes the shard's pending values as one batch. Entries leave the buffer
+	 * only after they are written, and only if no newer value arrived
+	 * meanwhile, so a failed flush is retried on the next one.
+	 */
+	protected void flushShard(int shardId) {
+		flushShard(shardId, true);
+	}
+	
+	/**
+	 * Flushes of a shard take turns on its flush lock, which writers never
+	 * take, so buffering goes on while a batch is written. Without wait the
+	 * flush is skipped if another one is running.
+	 */
+	protected void flushShard(int shardId, boolean wait) {
+		Map<String, T> pending = getPendingWrites(shardId);
+		ReentrantLock lock = getFlushLock(shardId);
+		if(wait)
+			lock.lock();
+		else if(!lock.tryLock())
+			return;
+		try {
+			if(pending.isEmpty())
+				return;
+			Map<String, T> batch = new LinkedHashMap<String, T>(pending);
+			replaceInShard(shardId, new ArrayList<T>(batch.values()));
+			for(Entry<String, T> entry : batch.entrySet()) {
+				if(pending.remove(entry.getKey(), entry.getValue()))
+					pendingCount.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private ReentrantLock getFlushLock(int shardId) {
+		ReentrantLock lock = flushLocks.get(shardId);
+		if(lock == null) {
+			flushLocks.putIfAbsent(shardId, new ReentrantLock());
+			lock = flushLocks.get(shardId);
+		}
+		return lock;
+	}
+	
+	protected T getPendingWrite(String id) {
+		if(pendingCount.get() == 0)
+			return null;
+		Map<String, T> pending = pendingWrites.get(getShardResolver().getShardId(id));
+		return pending == null ? null : pending.get(id);
+	}
+	
+	private Map<String, T> getPendingWrites(int shardId) {
+		Map<String, T> pending = pendingWrites.get(shardId);
+		if(pending == null) {
+			pendingWrites.putIfAbsent(shardId, new ConcurrentHashMap<String, T>());
+			pending = pendingWrites.get(shardId);
+		}
+		return pending;
+	}
+	
+	private synchronized void startWriteBehind() {
+		if(writeBehindScheduler != null)
+			return;
+		writeBehindScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "shard-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writeBehindScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					flushFailures.incrementAndGet();
+					lastFlushFailure = e;
+				}
 			}
+		}, writeBehindMillis, writeBehindMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	protected Map<Integer, List<T>> splitByShard(List<T> data) {
+		Map<Integer, List<T>> shardedData = new HashMap<Integer, List<T>>();
+		for(T t : data) {
+			String id = orm.getObjectId(t);
+			addToShard(shardedData, getShardResolver().getShardId(id), t);
+			int mirror = getMirrorShardId(id);
+			if(mirror >= 0)
+				addToShard(shardedData, mirror, t);
+		}
+		return shardedData;
+	}
+	
+	protected Map<Integer, List<String>> splitIdsForWrite(List<String> ids) {
+		Map<Integer, List<String>> shardedIds = new HashMap<Integer, List<String>>();
+		for(String id : ids) {
+			addToShard(shardedIds, getShardResolver().getShardId(id), id);
+			int mirror = getMirrorShardId(id);
+			if(mirror >= 0)
+				addToShard(shardedIds, mirror, id);
+		}
+		return shardedIds;
+	}
+	
+	private static <V> void addToShard(Map<Integer, List<V>> sharded, int shardId, V value) {
+		List<V> inshard = sharded.get(shardId);
+		if(inshard == null) {
+			inshard = new ArrayList<V>();
+			sharded.put(shardId, inshard);
+		}
+		inshard.add(value);
+	}
+	
+	protected int getMirrorShardId(String id) {
+		ShardResolver resolver = getShardResolver();
+		if(resolver instanceof MigratingShardResolver)
+			return ((MigratingShardResolver) resolver).getMirrorShardId(id);
+		return -1;
+	}
+	
+	/**
+	 * Shards a read of every row goes to. While a migration runs this is one
+	 * layout only, and rows the shard does not own must be dropped, see
+	 * isOwnerFilterRequired.
+	 */
+	protected List<Integer> scanShards() {
+		ShardResolver resolver = getShardResolver();
+		int size = resolver instanceof MigratingShardResolver ? ((MigratingShardResolver) resolver).getScanSize() : resolver.size();
+		List<Integer> shards = new ArrayList<Integer>(size);
+		for(int i=0; i<size; i++) {
+			shards.add(i);
+		}
+		return shards;
+	}
+	
+	protected boolean isOwnerFilterRequired() {
+		ShardResolver resolver = getShardResolver();
+		return resolver instanceof MigratingShardResolver && ((MigratingShardResolver) resolver).isOwnerFilterRequired();
+	}
+	
+	private boolean ownsId(int shardId, String id) {
+		if(id == null)
+			throw new IllegalStateException("rows need their id while shards are migrating");
+		return getShardResolver().getShardId(id) == shardId;
+	}
+	
+	private boolean ownsRow(int shardId, ResultSet rs) throws SQLException {
+		int column;
+		try {
+			column = rs.findColumn("id");
+		} catch (SQLException e) {
+			throw new IllegalStateException("queries must select the id column while shards are migrating", e);
+		}
+		return ownsId(shardId, orm.getId(rs, column));
+	}
+	
+	protected List<T> ownedRows(int shardId, List<T> rows) {
+		if(!isOwnerFilterRequired())
+			return rows;
+		List<T> owned = new ArrayList<T>(rows.size());
+		for(T row : rows) {
+			if(ownsId(shardId, orm.getObjectId(row)))
+				owned.add(row);
 		}
+		return owned;
+	}
+	
+	protected RowMapper<T> ownedRows(final int shardId, final RowMapper<T> rows) {
+		if(!isOwnerFilterRequired())
+			return rows;
+		return new RowMapper<T>() {
+			@Override
+			public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+				return ownsRow(shardId, rs) ? rows.mapRow(rs, rowNum) : null;
+			}
+		};
+	}
+	
+	protected RowCallbackHandler ownedRows(final int shardId, final RowCallbackHandler rows) {
+		if(!isOwnerFilterRequired())
+			return rows;
+		return new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				if(ownsRow(shardId, rs))
+					rows.processRow(rs);
+			}
+		};
 	}
 
+	/**
+	 * Callers get their own copy of a cached or buffered entity, so changing it
+	 * does not show through to other readers, or to the next flush, before it
+	 * is written.
+	 */
 	@Override
 	public T get(String id) {
+		T pending = getPendingWrite(id);
+		if(pending != null)
+			return orm.copy(pending);
+		long generation = 0;
+		if(entityCache != null) {
+			T cached = getCached(id);
+			if(cached != null)
+				return orm.copy(cached);
+			generation = cacheGeneration(id);
+		}
 		List<T> all = getAll(id);
-		return all.size() > 0 ? all.get(0) : null;
+		T found = all.size() > 0 ? all.get(0) : null;
+		if(found != null && entityCache != null)
+			cacheFill(id, found, generation);
+		return found;
 	}
 
 	@Override
 	public List<T> getAll(String id) {
 		int shardId = getShardResolver().getShardId(id);
-		NamedParameterJdbcTemplate jc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
-		return orm.query(jc, Collections.singletonMap("id", id), null);
+		NamedParameterJdbcTemplate jc = getReadNamedJdbcTemplate(shardId);
+		long start = System.nanoTime();
+		try {
+			List<T> data = orm.query(jc, Collections.singletonMap("id", orm.toIdParam(id)), null);
+			metrics.recordRows("get", shardId, data.size());
+			return data;
+		} finally {
+			metrics.recordLatency("get", shardId, System.nanoTime() - start);
+		}
 	}
 
 	@Override
 	public List<T> get(List<String> ids) {
-		final Map<Integer, List<String>> shardedIds = new HashMap<Integer, List<String>>();
-		for(String id : ids) {
-			int shardId = getShardResolver().getShardId(id);
-			List<String> inshardIds = shardedIds.get(shardId);
-			if(inshardIds == null) {
-				inshardIds = new ArrayList<String>();
-				shardedIds.put(shardId, inshardIds);
+		final Queue<T> result = new ConcurrentLinkedQueue<T>();
+		ids = collectCached(ids, result);
+		
+		MultiTask mt = new MultiTask(idChunkTasks("get", splitIdsByShard(ids), new ShardIdsRunnable() {
+			@Override
+			public void run(int shardId, List<String> chunk) {
+				result.addAll(getInShard(shardId, chunk));
 			}
-			inshardIds.add(id);
-		}
+		}));
+		mt.execute(executorService);
 		
+		return new ArrayList<T>(result);
+	}
+	
+	@Override
+	public PartialResult<T> get(List<String> ids, Deadline deadline) {
 		final List<T> result = new ArrayList<T>();
-		MultiTask mt = new MultiTask();
+		ids = collectCached(ids, result);
+		final Map<Integer, List<String>> shardedIds = splitIdsByShard(ids);
+		
+		List<Integer> missing = new ArrayList<Integer>();
+		Map<Integer, List<T>> shardResults = readShards("get", shardedIds.keySet(), new ShardReadCallable<List<T>>() {
+			@Override
+			public List<T> call(int shardId, ShardedDataSource source) {
+				List<String> sameShardIds = shardedIds.get(shardId);
+				Map<String, Long> generations = cacheGenerations(sameShardIds);
+				NamedParameterJdbcTemplate namedjc = getReadNamedJdbcTemplate(source, shardId);
+				String sql = "select * from " + orm.getTableName() + " where id in (:ids)";
+				List<T> data = new ArrayList<T>();
+				for(int from=0; from<sameShardIds.size(); from+=inListSize) {
+					List<String> chunk = sameShardIds.subList(from, Math.min(sameShardIds.size(), from + inListSize));
+					data.addAll(orm.queryBySql(namedjc, sql, Collections.singletonMap("ids", orm.toIdParams(chunk))));
+				}
+				metrics.recordRows("get", shardId, data.size());
+				cacheFill(data, generations);
+				return data;
+			}
+		}, deadline, missing);
+		
+		for(List<T> data : shardResults.values()) {
+			result.addAll(data);
+		}
+		return new PartialResult<T>(result, missing);
+	}
+	
+	/**
+	 * Adds copies of the buffered or cached entities of ids to hits and returns
+	 * the ids left to read.
+	 */
+	protected List<String> collectCached(List<String> ids, Collection<T> hits) {
+		if(entityCache == null && pendingCount.get() == 0)
+			return ids;
+		List<String> misses = new ArrayList<String>();
+		for(String id : ids) {
+			T cached = getPendingWrite(id);
+			if(cached == null && entityCache != null)
+				cached = getCached(id);
+			if(cached != null)
+				hits.add(orm.copy(cached));
+			else
+				misses.add(id);
+		}
+		return misses;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T getCached(String id) {
+		return (T) entityCache.get(cacheKey(id));
+	}
+	
+	/**
+	 * Splits each shard's ids into IN lists of at most inListSize ids and spreads
+	 * them over at most inListParallelism tasks per shard. The tasks of a shard
+	 * take chunks from a shared cursor; all but the first are optional, so
+	 * under a bulkhead they only add parallelism the shard has permits for and
+	 * never shed the call they belong to.
+	 */
+	protected List<Runnable> idChunkTasks(String operation, Map<Integer, List<String>> shardedIds, final ShardIdsRunnable runnable) {
+		metrics.recordFanOut(operation, shardedIds.size());
+		List<Runnable> tasks = new ArrayList<Runnable>();
 		for(Entry<Integer, List<String>> entry : shardedIds.entrySet()) {
-			int shardId = entry.getKey();
-			ShardTask shardTask = new ShardTask(shardId, new ShardRunnable() {
+			List<String> ids = entry.getValue();
+			final List<List<String>> chunks = new ArrayList<List<String>>();
+			for(int from=0; from<ids.size(); from+=inListSize) {
+				chunks.add(ids.subList(from, Math.min(ids.size(), from + inListSize)));
+			}
+			final AtomicInteger next = new AtomicInteger();
+			ShardRunnable lane = new ShardRunnable() {
 				@Override
 				public void run(int shardId) {
-					List<String> sameShardIds = shardedIds.get(shardId);
-					NamedParameterJdbcTemplate namedjc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
-					List<T> data = orm.queryBySql(namedjc, "select * from " + orm.getTableName() + " where id in (:ids)", Collections.singletonMap("ids", sameShardIds));
-					synchronized (result) {
-						result.addAll(data);
+					int i;
+					while((i = next.getAndIncrement()) < chunks.size()) {
+						runnable.run(shardId, chunks.get(i));
 					}
 				}
-			});
-			mt.addTask(shardTask);
+			};
+			int lanes = Math.min(inListParallelism, chunks.size());
+			for(int i=0; i<lanes; i++) {
+				ShardTask task = newShardTask(operation, entry.getKey(), lane);
+				task.setOptional(i > 0);
+				tasks.add(task);
+			}
+		}
+		return tasks;
+	}
+	
+	protected List<T> getInShard(int shardId, List<String> sameShardIds) {
+		Map<String, Long> generations = cacheGenerations(sameShardIds);
+		NamedParameterJdbcTemplate namedjc = getReadNamedJdbcTemplate(shardId);
+		List<T> data = orm.queryBySql(namedjc, "select * from " + orm.getTableName() + " where id in (:ids)", Collections.singletonMap("ids", orm.toIdParams(sameShardIds)));
+		metrics.recordRows("get", shardId, data.size());
+		cacheFill(data, generations);
+		return data;
+	}
+	
+	protected String cacheKey(String id) {
+		return CacheUtil.mintKey(id, orm.getMappedClass());
+	}
+	
+	/**
+	 * Counter bumped by every evict of id (and by evictAll). A read takes it
+	 * before querying and fills the cache only if it has not moved, so a row
+	 * read before a write cannot be cached after the write's evict.
+	 */
+	protected long cacheGeneration(String id) {
+		return cacheGenerations.get(cacheStripe(id)) + cacheEpoch.get();
+	}
+	
+	private int cacheStripe(String id) {
+		return (id.hashCode() & 0x7fffffff) % cacheGenerations.length();
+	}
+	
+	private Map<String, Long> cacheGenerations(List<String> ids) {
+		if(entityCache == null)
+			return null;
+		Map<String, Long> generations = new HashMap<String, Long>();
+		for(String id : ids) {
+			generations.put(id, cacheGeneration(id));
+		}
+		return generations;
+	}
+	
+	private void cacheFill(List<T> data, Map<String, Long> generations) {
+		if(entityCache == null || generations == null)
+			return;
+		for(T t : data) {
+			String id = orm.getObjectId(t);
+			Long generation = generations.get(id);
+			if(generation != null)
+				cacheFill(id, t, generation);
+		}
+	}
+	
+	/**
+	 * Caches a copy of t unless id was evicted since generation was taken. The
+	 * generation is checked again after the put, since an evict may have run in
+	 * between, and the entry is dropped if it moved.
+	 */
+	protected void cacheFill(String id, T t, long generation) {
+		if(entityCache == null || cacheGeneration(id) != generation)
+			return;
+		String key = cacheKey(id);
+		entityCache.put(key, orm.copy(t));
+		if(cacheGeneration(id) != generation)
+			entityCache.remove(key);
+	}
+	
+	protected void evict(String id) {
+		if(entityCache != null && id != null) {
+			cacheGenerations.incrementAndGet(cacheStripe(id));
+			entityCache.remove(cacheKey(id));
+		}
+	}
+	
+	protected void evictAll() {
+		if(entityCache != null) {
+			cacheEpoch.incrementAndGet();
+			entityCache.clear();
 		}
-		mt.execute(executorService);
-		
-		return result;
 	}
 	
 	protected Map<Integer, List<String>> splitIdsByShard(List<String> ids) {
@@ -133,33 +680,194 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 
 	@Override
 	public Set<String> existingIds(List<String> ids) {
-		final Map<Integer, List<String>> shardedIds = splitIdsByShard(ids);
-		final Set<String> result = new HashSet<String>();
+		final Set<String> result = ConcurrentHashMap.newKeySet();
+		ids = maybeExistingIds(ids);
+		MultiTask mt = new MultiTask(idChunkTasks("existingIds", splitIdsByShard(ids), new ShardIdsRunnable() {
+			@Override
+			public void run(int shardId, List<String> chunk) {
+				result.addAll(existingIdsInShard(shardId, chunk));
+			}
+		}));
+		mt.execute(executorService);
+		
+		return result;
+	}
+	
+	protected List<String> existingIdsInShard(int shardId, List<String> sameShardIds) {
+		NamedParameterJdbcTemplate namedjc = getReadNamedJdbcTemplate(shardId);
+		String sql = "select id from " + orm.getTableName() + " where id in (:ids)";
+		List<String> existing = namedjc.query(sql, Collections.singletonMap("ids", orm.toIdParams(sameShardIds)), orm.getIdRowMapper());
+		metrics.recordRows("existingIds", shardId, existing.size());
+		return existing;
+	}
+
+	/**
+	 * Drops the ids the shard id filters prove absent. Without filters every id
+	 * is kept, and so is every id of a shard the filters were not built for.
+	 */
+	protected List<String> maybeExistingIds(List<String> ids) {
+		BloomFilter[] filters = idFilters;
+		if(filters == null)
+			return ids;
+		List<String> maybe = new ArrayList<String>();
+		for(String id : ids) {
+			int shardId = getShardResolver().getShardId(id);
+			if(shardId >= filters.length || filters[shardId].mightContain(id))
+				maybe.add(id);
+		}
+		return maybe;
+	}
+	
+	/**
+	 * Adds an id to the shard's filter. Called after the row is written: the
+	 * build's log is read before the filters, so an id either lands in a log the
+	 * build still drains or in filters the build has already published.
+	 */
+	protected void rememberId(int shardId, String id) {
+		if(id == null)
+			return;
+		List<Queue<String>> logs = idFilterLogs;
+		if(logs != null && shardId < logs.size())
+			logs.get(shardId).add(id);
+		BloomFilter[] filters = idFilters;
+		if(filters != null && shardId < filters.length)
+			filters[shardId].add(id);
+	}
+	
+	/**
+	 * Scans the ids of every shard in parallel into fresh Bloom filters. Ids
+	 * written while the scan runs are logged and replayed into the new filters
+	 * once they are published, so the filters never miss an id written through
+	 * this dao. A build that overlaps dropIdFilters is not published.
+	 */
+	public void buildIdFilters() {
+		BloomFilter[] filters = new BloomFilter[getShardSize()];
+		for(int i=0; i<filters.length; i++) {
+			filters[i] = new BloomFilter(idFilterExpectedInsertions, idFilterFpp);
+		}
+		publishIdFilters(filters, "select id from " + orm.getTableName(), Collections.<String, Object>emptyMap());
+	}
+	
+	/**
+	 * Adds the ids sql selects on every shard to filters and publishes them,
+	 * replaying the ids written meanwhile, see buildIdFilters.
+	 */
+	private void publishIdFilters(final BloomFilter[] filters, final String sql, final Map<String, ?> params) {
+		List<Queue<String>> logs = new ArrayList<Queue<String>>(filters.length);
+		for(int i=0; i<filters.length; i++) {
+			logs.add(new ConcurrentLinkedQueue<String>());
+		}
+		long epoch = idFilterEpoch.get();
+		idFilterLogs = logs;
 		
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				List<String> sameShardIds = shardedIds.get(shardId);
-				NamedParameterJdbcTemplate namedjc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
-				String sql = "select id from " + orm.getTableName() + " where id in (:ids)";
-				List<String> data = namedjc.queryForList(sql, Collections.singletonMap("ids", sameShardIds), String.class);
-				synchronized (result) {
-					result.addAll(data);
-				}
+				JdbcTemplate template = new StreamingJdbcTemplate(getShardedDataSource().getDataSource(shardId), dumpFetchSize);
+				final BloomFilter filter = filters[shardId];
+				new NamedParameterJdbcTemplate(template).query(sql, params, new RowCallbackHandler() {
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						filter.add(orm.getId(rs, 1));
+					}
+				});
 			}
 		};
 		
-		MultiTask mt = new MultiTask();
-		for(Entry<Integer, List<String>> entry : shardedIds.entrySet()) {
-			int shardId = entry.getKey();
-			ShardTask shardTask = new ShardTask(shardId, runnable);
-			mt.addTask(shardTask);
+		try {
+			MultiTask mt = new MultiTask();
+			for(int i=0; i<filters.length; i++) {
+				ShardTask shardTask = new ShardTask(i, runnable, null, metrics, "buildIdFilters");
+				mt.addTask(shardTask);
+			}
+			mt.execute(executorService);
+			synchronized (idFilterEpoch) {
+				if(idFilterEpoch.get() != epoch)
+					return;
+				idFilters = filters;
+			}
+			for(int i=0; i<logs.size(); i++) {
+				String id;
+				while((id = logs.get(i).poll()) != null) {
+					filters[i].add(id);
+				}
+			}
+		} finally {
+			if(idFilterLogs == logs)
+				idFilterLogs = null;
 		}
-		mt.execute(executorService);
-		
-		return result;
 	}
-
+	
+	// negative, unlike the shard count that files without a watermark start with
+	private static final int ID_FILTER_FILE_VERSION = -2;
+	
+	/**
+	 * Saves the filters with a watermark: the time the save began, less
+	 * idFilterRescanMarginMillis. Rows written after the save are not in the
+	 * file, so loadIdFilters adds the ids of rows created since the watermark.
+	 */
+	public void saveIdFilters(File file) throws IOException {
+		long watermark = System.currentTimeMillis() - idFilterRescanMarginMillis;
+		BloomFilter[] filters = idFilters;
+		if(filters == null)
+			throw new IllegalStateException("id filters are not built");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(ID_FILTER_FILE_VERSION);
+			out.writeLong(watermark);
+			out.writeInt(filters.length);
+			for(BloomFilter filter : filters) {
+				filter.writeTo(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Loads filters saved by saveIdFilters and, before publishing them, adds
+	 * the ids of every row whose created column is at or after the file's
+	 * watermark, so rows written after the save are not reported absent. The
+	 * entity needs a created column, set when a row is inserted, and the
+	 * rescan is cheap only with an index on it. Files without a watermark are
+	 * refused; rebuild the filters instead.
+	 */
+	public void loadIdFilters(File file) throws IOException {
+		Class<?> createdType = orm.getColumnType("created");
+		if(createdType == null)
+			throw new IllegalStateException("id filters can only be loaded for entities with a created column, build them instead");
+		long watermark;
+		BloomFilter[] filters;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != ID_FILTER_FILE_VERSION)
+				throw new IOException("id filter file " + file + " has no watermark, build the filters instead");
+			watermark = in.readLong();
+			int shards = in.readInt();
+			if(shards != getShardSize())
+				throw new IOException("id filter file has " + shards + " shards, expected " + getShardSize());
+			filters = new BloomFilter[shards];
+			for(int i=0; i<shards; i++) {
+				filters[i] = BloomFilter.readFrom(in);
+			}
+		} finally {
+			in.close();
+		}
+		Object since = Date.class.isAssignableFrom(createdType) ? new Timestamp(watermark) : (Object) watermark;
+		publishIdFilters(filters, "select id from " + orm.getTableName() + " where created >= :since", Collections.singletonMap("since", since));
+	}
+	
+	/**
+	 * Drops the filters, so existingIds queries every shard again. Called after
+	 * updates with arbitrary SQL, which may insert ids the filters do not know.
+	 */
+	public void dropIdFilters() {
+		synchronized (idFilterEpoch) {
+			idFilterEpoch.incrementAndGet();
+			idFilters = null;
+		}
+	}
+	
 	@Override
 	public Set<String> nonexistingIds(List<String> ids) {
 		Set<String> existings = existingIds(ids);
@@ -174,22 +882,22 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 	@Override
 	public void dump(final ObjectDumper od) {
 		String sql = "select * from " + orm.getTableName();
-		for(int i=0; i<getShardResolver().size(); i++) {
-			JdbcTemplate template = getShardedDataSource().getJdbcTemplate(i);
+		for(int i : scanShards()) {
+			JdbcTemplate template = getReadJdbcTemplate(i);
 			RowMapper<T> mapper2 = orm.getStreamRow(new RowMapped<T>() {
 				@Override
 				public void objectFound(T obj) {
 					od.dump(obj);
 				}
 			});
-			template.query(sql, mapper2);
+			template.query(sql, ownedRows(i, mapper2));
 		}
 	}
 	
 	@Override
 	public void dump(final ObjectDumper od, int shardId) {
 		String sql = "select * from " + orm.getTableName();
-		JdbcTemplate template = getShardedDataSource().getJdbcTemplate(shardId);
+		JdbcTemplate template = getReadJdbcTemplate(shardId);
 		RowMapper<T> streamRow = orm.getStreamRow(new RowMapped<T>() {
 			@Override
 			public void objectFound(T obj) {
@@ -207,20 +915,140 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 	
 	@Override
 	public void dump(String sql, RowMapped<T> rows) {
-		for(int i=0; i<getShardResolver().size(); i++) {
-			JdbcTemplate template = getShardedDataSource().getJdbcTemplate(i);
-			template.query(sql, orm.getStreamRow(rows));
+		for(int i : scanShards()) {
+			JdbcTemplate template = getReadJdbcTemplate(i);
+			template.query(sql, ownedRows(i, orm.getStreamRow(rows)));
 		}
 	}
 	
 	@Override
 	public void dump(String sql, RowMapper<T> rows) {
-		for(int i=0; i<getShardResolver().size(); i++) {
-			JdbcTemplate template = getShardedDataSource().getJdbcTemplate(i);
-			template.query(sql, rows);
+		for(int i : scanShards()) {
+			JdbcTemplate template = getReadJdbcTemplate(i);
+			template.query(sql, ownedRows(i, rows));
+		}
+	}
+	
+	@Override
+	public void dumpParallel(final ObjectDumper od) {
+		String sql = "select * from " + orm.getTableName();
+		dumpParallel(sql, new RowMapped<T>() {
+			@Override
+			public void objectFound(T obj) {
+				od.dump(obj);
+			}
+		});
+	}
+	
+	@Override
+	public void dumpParallel(final String sql, RowMapped<T> rows) {
+		List<Integer> scanned = scanShards();
+		final int shards = scanned.size();
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(dumpQueueSize);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		
+		ShardRunnable runnable = new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				try {
+					JdbcTemplate template = new StreamingJdbcTemplate(getReadDataSource(shardId), dumpFetchSize);
+					final int[] count = new int[1];
+					template.query(sql, ownedRows(shardId, orm.getStreamRow(new RowMapped<T>() {
+						@Override
+						public void objectFound(T obj) {
+							count[0]++;
+							handOff(queue, obj, cancelled);
+						}
+					})));
+					metrics.recordRows("dump", shardId, count[0]);
+					handOff(queue, END_OF_SHARD, cancelled);
+				} catch (Throwable e) {
+					if(cancelled.get())
+						return;
+					try {
+						handOff(queue, new DumpFailure(shardId, e), cancelled);
+					} catch (DumpCancelledException ignored) {
+					}
+				}
+			}
+		};
+		
+		metrics.recordFanOut("dump", shards);
+		startProducers(runnable, scanned, "dump", cancelled);
+		
+		try {
+			int finished = 0;
+			while(finished < shards) {
+				Object obj = queue.take();
+				if(obj == END_OF_SHARD) {
+					finished++;
+				}
+				else if(obj instanceof DumpFailure) {
+					DumpFailure failure = (DumpFailure) obj;
+					throw new RuntimeException("dump failed on shard " + failure.shardId, failure.cause);
+				}
+				else {
+					@SuppressWarnings("unchecked")
+					T row = (T) obj;
+					rows.objectFound(row);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			cancelled.set(true);
+		}
+	}
+	
+	/**
+	 * Starts one producer per shard. If the executor refuses one, the producers
+	 * already started are cancelled, since the consumer would otherwise wait
+	 * for an end marker that never comes. Producers run in the caller's
+	 * consistency session.
+	 */
+	private void startProducers(ShardRunnable runnable, List<Integer> shards, String operation, AtomicBoolean cancelled) {
+		ShardRunnable producer = inSession(runnable);
+		try {
+			for(int i : shards) {
+				ShardTask task = new ShardTask(i, producer, null, metrics, operation);
+				task.submitting();
+				executorService.execute(task);
+			}
+		} catch (RuntimeException e) {
+			cancelled.set(true);
+			throw e;
 		}
 	}
 	
+	private static void handOff(BlockingQueue<Object> queue, Object obj, AtomicBoolean cancelled) {
+		try {
+			while(!queue.offer(obj, 100, TimeUnit.MILLISECONDS)) {
+				if(cancelled.get())
+					throw new DumpCancelledException();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DumpCancelledException();
+		}
+	}
+	
+	private static final Object END_OF_SHARD = new Object();
+	
+	private static class DumpFailure {
+		private int shardId;
+		private Throwable cause;
+		
+		public DumpFailure(int shardId, Throwable cause) {
+			this.shardId = shardId;
+			this.cause = cause;
+		}
+	}
+	
+	private static class DumpCancelledException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
 	@Override
 	public JdbcTemplate getJdbcTemplate(int shardId) {
 		return getShardedDataSource().getJdbcTemplate(shardId);
@@ -241,66 +1069,352 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		return getShardedDataSource().getNamedParameterJdbcTemplate(getShardResolver().getShardId(id));
 	}
 	
-	@Override
-	public int getShardSize() {
-		return getShardResolver().size();
+	/**
+	 * Primary templates for writes. Taking one marks the shard, so the caller's
+	 * reads of it stay on the primary for readYourWritesMillis; writes through
+	 * the dao mark it again with recordWrite once they are done, so a long
+	 * batch cannot outlast the window.
+	 */
+	protected JdbcTemplate getWriteJdbcTemplate(int shardId) {
+		recordWrite(shardId);
+		return getShardedDataSource().getJdbcTemplate(shardId);
 	}
 	
-	@Override
+	protected NamedParameterJdbcTemplate getWriteNamedJdbcTemplate(int shardId) {
+		recordWrite(shardId);
+		return getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+	}
+	
+	protected JdbcTemplate getReadJdbcTemplate(int shardId) {
+		return getReadJdbcTemplate(getShardedDataSource(), shardId);
+	}
+	
+	protected NamedParameterJdbcTemplate getReadNamedJdbcTemplate(int shardId) {
+		return getReadNamedJdbcTemplate(getShardedDataSource(), shardId);
+	}
+	
+	protected DataSource getReadDataSource(int shardId) {
+		ShardedDataSource source = getShardedDataSource();
+		return recentlyWritten(shardId) ? source.getDataSource(shardId) : source.getReadDataSource(shardId);
+	}
+	
+	protected JdbcTemplate getReadJdbcTemplate(ShardedDataSource source, int shardId) {
+		return recentlyWritten(shardId) ? source.getJdbcTemplate(shardId) : source.getReadJdbcTemplate(shardId);
+	}
+	
+	protected NamedParameterJdbcTemplate getReadNamedJdbcTemplate(ShardedDataSource source, int shardId) {
+		return recentlyWritten(shardId) ? source.getNamedParameterJdbcTemplate(shardId) : source.getReadNamedParameterJdbcTemplate(shardId);
+	}
+	
+	protected void recordWrite(int shardId) {
+		if(readYourWritesMillis > 0)
+			getConsistencySession().recordWrite(shardId);
+	}
+	
+	private boolean recentlyWritten(int shardId) {
+		if(readYourWritesMillis <= 0)
+			return false;
+		ConsistencySession session = sessions.get();
+		return session != null && session.isRecentlyWritten(shardId, readYourWritesMillis);
+	}
+	
+	/**
+	 * The calling thread's session, created on first use. Hand it to
+	 * setConsistencySession on another thread, or keep it with a user's
+	 * requests, to read that caller's writes there too.
+	 */
+	public ConsistencySession getConsistencySession() {
+		ConsistencySession session = sessions.get();
+		if(session == null) {
+			session = new ConsistencySession();
+			sessions.set(session);
+		}
+		return session;
+	}
+	
+	/**
+	 * Makes session the calling thread's session; null starts a fresh one on
+	 * the next write.
+	 */
+	public void setConsistencySession(ConsistencySession session) {
+		if(session == null)
+			sessions.remove();
+		else
+			sessions.set(session);
+	}
+	
+	/**
+	 * Session to carry from the calling thread onto the threads doing its work,
+	 * or null when reads ignore recent writes.
+	 */
+	private ConsistencySession captureSession() {
+		return readYourWritesMillis > 0 ? getConsistencySession() : null;
+	}
+	
+	private ConsistencySession enterSession(ConsistencySession session) {
+		ConsistencySession previous = sessions.get();
+		if(session != null)
+			sessions.set(session);
+		return previous;
+	}
+	
+	private void exitSession(ConsistencySession previous) {
+		setConsistencySession(previous);
+	}
+	
+	private <V> ShardReadCallable<V> inSession(final ShardReadCallable<V> reader) {
+		final ConsistencySession session = captureSession();
+		if(session == null)
+			return reader;
+		return new ShardReadCallable<V>() {
+			@Override
+			public V call(int shardId, ShardedDataSource source) {
+				ConsistencySession previous = enterSession(session);
+				try {
+					return reader.call(shardId, source);
+				} finally {
+					exitSession(previous);
+				}
+			}
+		};
+	}
+	
+	private ShardRunnable inSession(final ShardRunnable runnable) {
+		final ConsistencySession session = captureSession();
+		if(session == null)
+			return runnable;
+		return new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				ConsistencySession previous = enterSession(session);
+				try {
+					runnable.run(shardId);
+				} finally {
+					exitSession(previous);
+				}
+			}
+		};
+	}
+	
+	@Override
+	public int getShardSize() {
+		return getShardResolver().size();
+	}
+	
+	@Override
 	public void remove(String id) {
 		remove(Collections.singletonList(id));
 	}
 	
 	@Override
 	public void remove(List<String> ids) {
-		final Map<Integer, List<String>> shardedIds = splitIdsByShard(ids);
-		
-		ShardRunnable runnable = new ShardRunnable() {
+		recordDeletes(ids);
+		MultiTask mt = new MultiTask(idChunkTasks("remove", splitIdsForWrite(ids), new ShardIdsRunnable() {
 			@Override
-			public void run(int shardId) {
-				List<String> sameShardIds = shardedIds.get(shardId);
-				NamedParameterJdbcTemplate namedjc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
-				String sql = "delete from " + orm.getTableName() + " where id in (:ids)";
-				namedjc.update(sql, Collections.singletonMap("ids", sameShardIds));
+			public void run(int shardId, List<String> chunk) {
+				removeInShard(shardId, chunk);
 			}
-		};
-		
-		MultiTask mt = new MultiTask();
-		for(Entry<Integer, List<String>> entry : shardedIds.entrySet()) {
-			int shardId = entry.getKey();
-			ShardTask shardTask = new ShardTask(shardId, runnable);
-			mt.addTask(shardTask);
-		}
+		}));
 		mt.execute(executorService);
 	}
 	
+	/**
+	 * Leaves tombstones for a running shard copy, so it cannot bring the rows
+	 * back. Recorded before the delete runs.
+	 */
+	protected void recordDeletes(List<String> ids) {
+		ShardResolver resolver = getShardResolver();
+		if(resolver instanceof MigratingShardResolver) {
+			for(String id : ids) {
+				((MigratingShardResolver) resolver).recordDelete(id);
+			}
+		}
+	}
+	
+	protected void removeInShard(int shardId, List<String> sameShardIds) {
+		NamedParameterJdbcTemplate namedjc = getWriteNamedJdbcTemplate(shardId);
+		String sql = "delete from " + orm.getTableName() + " where id in (:ids)";
+		Map<String, T> pending = pendingWrites.get(shardId);
+		if(pending != null) {
+			// hold off flushes so a buffered write cannot land after the delete
+			ReentrantLock lock = getFlushLock(shardId);
+			lock.lock();
+			try {
+				for(String id : sameShardIds) {
+					if(pending.remove(id) != null)
+						pendingCount.decrementAndGet();
+				}
+				namedjc.update(sql, Collections.singletonMap("ids", orm.toIdParams(sameShardIds)));
+			} finally {
+				lock.unlock();
+			}
+		}
+		else {
+			namedjc.update(sql, Collections.singletonMap("ids", orm.toIdParams(sameShardIds)));
+		}
+		recordWrite(shardId);
+		metrics.recordRows("remove", shardId, sameShardIds.size());
+		if(entityCache != null) {
+			for(String id : sameShardIds) {
+				evict(id);
+			}
+		}
+	}
+	
+	@Override
+	public void query(OutputStream stream, String sql) {
+		query(stream, sql, ExportFormat.TSV, true);
+	}
+	
 	@Override
-	public void query(final OutputStream stream, String sql) {
-		final StringBuilder sb = new StringBuilder();
-		for(int i=0; i<getShardResolver().size(); i++) {
-			JdbcTemplate template = getShardedDataSource().getJdbcTemplate(i);
-			template.query(sql, new RowMapper(){
-				ResultSetMetaData metaData = null;
+	public void query(OutputStream stream, String sql, ExportFormat format, boolean interleaved) {
+		try {
+			if(interleaved)
+				exportInterleaved(stream, sql, format);
+			else
+				exportSequential(stream, sql, format);
+			stream.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void exportSequential(final OutputStream stream, String sql, ExportFormat format) throws IOException {
+		final ResultSetEncoder encoder = new ResultSetEncoder(format, exportChunkSize);
+		for(int i : scanShards()) {
+			JdbcTemplate template = new StreamingJdbcTemplate(getReadDataSource(i), dumpFetchSize);
+			template.query(sql, ownedRows(i, new RowCallbackHandler() {
 				@Override
-				public Object mapRow(ResultSet rs, int rowNum)
-						throws SQLException {
-					if(metaData == null)
-						metaData = rs.getMetaData();
-					int cnt = metaData.getColumnCount();
-					if(sb.length() == 0) {
-						for(int i=0; i<cnt; i++) {
-							sb.append(metaData.getColumnLabel(i+1));
-							sb.append("\t");
+				public void processRow(ResultSet rs) throws SQLException {
+					if(!encoder.isInitialized()) {
+						encoder.init(rs.getMetaData());
+						encoder.header(encoder.getLabels());
+					}
+					encoder.row(rs);
+					if(encoder.length() >= exportChunkSize) {
+						try {
+							stream.write(encoder.getBuffer(), 0, encoder.length());
+						} catch (IOException e) {
+							throw new RuntimeException(e);
 						}
-						sb.append("\n");
+						encoder.reset(encoder.getBuffer());
 					}
-					for(int i=0; i<cnt; i++) {
-						sb.append(rs.getString(i+1));
-						sb.append("\t");
+				}
+			}));
+		}
+		stream.write(encoder.getBuffer(), 0, encoder.length());
+	}
+	
+	/**
+	 * Shards are scanned in parallel, each encoding into a buffer borrowed from
+	 * a fixed pool. Full buffers are written by the calling thread in arrival
+	 * order and go back to the pool, so memory stays at the pool size however
+	 * many rows are exported.
+	 */
+	private void exportInterleaved(OutputStream stream, final String sql, final ExportFormat format) throws IOException {
+		List<Integer> scanned = scanShards();
+		final int shards = scanned.size();
+		final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(shards * 2);
+		for(int i=0; i<shards * 2; i++) {
+			free.add(new byte[exportChunkSize]);
+		}
+		final BlockingQueue<Object> filled = new ArrayBlockingQueue<Object>(shards * 3);
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		
+		ShardRunnable runnable = new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				try {
+					final ResultSetEncoder encoder = new ResultSetEncoder(format, 0);
+					encoder.reset(borrow(free, cancelled));
+					JdbcTemplate template = new StreamingJdbcTemplate(getReadDataSource(shardId), dumpFetchSize);
+					template.query(sql, ownedRows(shardId, new RowCallbackHandler() {
+						@Override
+						public void processRow(ResultSet rs) throws SQLException {
+							if(!encoder.isInitialized())
+								encoder.init(rs.getMetaData());
+							encoder.row(rs);
+							if(encoder.length() >= exportChunkSize) {
+								metrics.recordBytes("export", shardId, encoder.length());
+								handOff(filled, new ExportChunk(encoder.getLabels(), encoder.getBuffer(), encoder.length()), cancelled);
+								encoder.reset(borrow(free, cancelled));
+							}
+						}
+					}));
+					metrics.recordBytes("export", shardId, encoder.length());
+					if(encoder.length() > 0)
+						handOff(filled, new ExportChunk(encoder.getLabels(), encoder.getBuffer(), encoder.length()), cancelled);
+					handOff(filled, END_OF_SHARD, cancelled);
+				} catch (Throwable e) {
+					if(cancelled.get())
+						return;
+					try {
+						handOff(filled, new DumpFailure(shardId, e), cancelled);
+					} catch (DumpCancelledException ignored) {
 					}
-					sb.append("\n");
-					return null;
-				}});
+				}
+			}
+		};
+		
+		metrics.recordFanOut("export", shards);
+		startProducers(runnable, scanned, "export", cancelled);
+		
+		try {
+			boolean headerWritten = false;
+			int finished = 0;
+			while(finished < shards) {
+				Object obj = filled.take();
+				if(obj == END_OF_SHARD) {
+					finished++;
+				}
+				else if(obj instanceof DumpFailure) {
+					DumpFailure failure = (DumpFailure) obj;
+					throw new RuntimeException("export failed on shard " + failure.shardId, failure.cause);
+				}
+				else {
+					ExportChunk chunk = (ExportChunk) obj;
+					if(!headerWritten) {
+						ResultSetEncoder header = new ResultSetEncoder(format, 1024);
+						header.header(chunk.labels);
+						stream.write(header.getBuffer(), 0, header.length());
+						headerWritten = true;
+					}
+					stream.write(chunk.data, 0, chunk.length);
+					free.offer(chunk.data);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			cancelled.set(true);
+		}
+	}
+	
+	private static byte[] borrow(BlockingQueue<byte[]> free, AtomicBoolean cancelled) {
+		try {
+			while(true) {
+				byte[] buffer = free.poll(100, TimeUnit.MILLISECONDS);
+				if(buffer != null)
+					return buffer;
+				if(cancelled.get())
+					throw new DumpCancelledException();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DumpCancelledException();
+		}
+	}
+	
+	private static class ExportChunk {
+		private String[] labels;
+		private byte[] data;
+		private int length;
+		
+		public ExportChunk(String[] labels, byte[] data, int length) {
+			this.labels = labels;
+			this.data = data;
+			this.length = length;
 		}
 	}
 	
@@ -337,15 +1451,16 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				JdbcTemplate namedjc = getShardedDataSource().getJdbcTemplate(shardId);
-				namedjc.query(sql, args, rows);
+				JdbcTemplate namedjc = getReadJdbcTemplate(shardId);
+				metrics.recordRows("query", shardId, namedjc.query(sql, args, ownedRows(shardId, rows)).size());
 			}
 		};
 		
-		for(int i=0; i<getShardSize(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
+		for(int i : scanShards()) {
+			ShardTask shardTask = newShardTask("query", i, runnable);
 			mt.addTask(shardTask);
 		}
+		metrics.recordFanOut("query", mt.size());
 		mt.execute(executorService);
 	}
 	
@@ -355,15 +1470,16 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				NamedParameterJdbcTemplate namedjc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
-				namedjc.query(sql, params, rows);
+				NamedParameterJdbcTemplate namedjc = getReadNamedJdbcTemplate(shardId);
+				metrics.recordRows("query", shardId, namedjc.query(sql, params, ownedRows(shardId, rows)).size());
 			}
 		};
 		
-		for(int i=0; i<getShardSize(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
+		for(int i : scanShards()) {
+			ShardTask shardTask = newShardTask("query", i, runnable);
 			mt.addTask(shardTask);
 		}
+		metrics.recordFanOut("query", mt.size());
 		mt.execute(executorService);
 	}
 	
@@ -379,22 +1495,350 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		queryAllShards(sql, mapper, params);
 	}
 	
+	@Override
+	public PartialResult<T> queryAllShards(final String sql, final Object[] args, Deadline deadline) {
+		List<Integer> missing = new ArrayList<Integer>();
+		Map<Integer, List<T>> shardResults = readShards("query", scanShards(), new ShardReadCallable<List<T>>() {
+			@Override
+			public List<T> call(int shardId, ShardedDataSource source) {
+				List<T> data = ownedRows(shardId, orm.queryBySql(getReadJdbcTemplate(source, shardId), sql, args));
+				metrics.recordRows("query", shardId, data.size());
+				return data;
+			}
+		}, deadline, missing);
+		
+		List<T> result = new ArrayList<T>();
+		for(List<T> data : shardResults.values()) {
+			result.addAll(data);
+		}
+		return new PartialResult<T>(result, missing);
+	}
+	
+	/**
+	 * Reads the given shards in parallel and waits no longer than the deadline.
+	 * With hedging on and a hedge data source configured, a shard still running
+	 * after its recent latency percentile is read again from the hedge source
+	 * and whichever answer comes first wins. Shards without an answer at the
+	 * deadline are added to missing, or fail the call, as the deadline asks.
+	 */
+	protected <V> Map<Integer, V> readShards(final String operation, Collection<Integer> shardIds, ShardReadCallable<V> shardReader, Deadline deadline, List<Integer> missing) {
+		metrics.recordFanOut(operation, shardIds.size());
+		final ShardReadCallable<V> reader = inSession(shardReader);
+		final LatencyTracker latency = getShardLatency();
+		long start = System.nanoTime();
+		Map<Integer, CompletableFuture<V>> futures = new LinkedHashMap<Integer, CompletableFuture<V>>();
+		for(final int shardId : shardIds) {
+			final HedgedRead<V> read = new HedgedRead<V>();
+			read.launch(operation, shardId, reader, getShardedDataSource(), latency);
+			final ShardedDataSource hedgeSource = hedgeDataSource != null ? hedgeDataSource
+					: getShardedDataSource().getReplicaCount(shardId) > 1 ? getShardedDataSource() : null;
+			if(deadline.isHedge() && hedgeSource != null) {
+				long delay = Math.max(deadline.getMinHedgeDelayMillis(), latency.percentile(shardId, deadline.getHedgePercentile()));
+				getHedgeScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						if(!read.future.isDone())
+							read.launch(operation, shardId, reader, hedgeSource, null);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			futures.put(shardId, read.future);
+		}
+		
+		long until = start + TimeUnit.MILLISECONDS.toNanos(deadline.getTimeoutMillis());
+		Map<Integer, V> results = new LinkedHashMap<Integer, V>();
+		for(Entry<Integer, CompletableFuture<V>> entry : futures.entrySet()) {
+			try {
+				results.put(entry.getKey(), entry.getValue().get(Math.max(0, until - System.nanoTime()), TimeUnit.NANOSECONDS));
+			} catch (TimeoutException e) {
+				missing.add(entry.getKey());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("read failed on shard " + entry.getKey(), e.getCause());
+			}
+		}
+		if(!missing.isEmpty() && deadline.getOnTimeout() == Deadline.OnTimeout.FAIL)
+			throw new ShardTimeoutException(missing);
+		return results;
+	}
+	
+	private class HedgedRead<V> {
+		private CompletableFuture<V> future = new CompletableFuture<V>();
+		private AtomicInteger running = new AtomicInteger();
+		
+		public void launch(final String operation, final int shardId, final ShardReadCallable<V> reader, final ShardedDataSource source, final LatencyTracker latency) {
+			running.incrementAndGet();
+			final List<V> value = new ArrayList<V>(1);
+			final ShardRunnable read = new ShardRunnable() {
+				@Override
+				public void run(int shardId) {
+					value.add(reader.call(shardId, source));
+				}
+			};
+			// reads of the primary source go through the shard's bulkhead
+			final ShardTask task = source == getShardedDataSource() ? newShardTask(operation, shardId, read) : null;
+			if(task != null) {
+				try {
+					task.submitting();
+				} catch (RuntimeException e) {
+					failed(e);
+					return;
+				}
+			}
+			try {
+				executorService.execute(new Runnable() {
+					@Override
+					public void run() {
+						long start = System.currentTimeMillis();
+						try {
+							if(task != null)
+								task.run();
+							else
+								read.run(shardId);
+							if(latency != null)
+								latency.record(shardId, System.currentTimeMillis() - start);
+							future.complete(value.get(0));
+						} catch (RuntimeException e) {
+							failed(e);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				if(task != null)
+					task.submitFailed();
+				failed(e);
+			}
+		}
+		
+		private void failed(RuntimeException e) {
+			if(running.decrementAndGet() == 0)
+				future.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Latency samples per shard, started over when the resolver grows beyond
+	 * the shards they were kept for.
+	 */
+	protected synchronized LatencyTracker getShardLatency() {
+		if(shardLatency == null || shardLatency.getChannels() < getShardSize())
+			shardLatency = new LatencyTracker(getShardSize(), 128);
+		return shardLatency;
+	}
+	
+	protected synchronized ScheduledExecutorService getHedgeScheduler() {
+		if(hedgeScheduler == null) {
+			hedgeScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "shard-hedge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return hedgeScheduler;
+	}
+	
+	/**
+	 * Top limit rows across shards. sql must carry an ORDER BY that sorts the
+	 * same way as comparator, so the limit pushed down to each shard keeps
+	 * that shard's first rows; the overloads taking an orderBy column add it.
+	 */
+	@Override
+	public List<T> queryAllShards(final String sql, final Object[] args, final Comparator<T> comparator, final int limit) {
+		checkOrderedLimit(sql, limit);
+		final String limited = sql + " limit " + limit;
+		return mergeSorted(new ShardQuery() {
+			@Override
+			public void query(JdbcTemplate template, RowCallbackHandler rows) {
+				template.query(limited, args, rows);
+			}
+		}, comparator, limit);
+	}
+	
+	@Override
+	public List<T> queryAllShards(final String sql, final Map<String, Object> params, final Comparator<T> comparator, final int limit) {
+		checkOrderedLimit(sql, limit);
+		final String limited = sql + " limit " + limit;
+		return mergeSorted(new ShardQuery() {
+			@Override
+			public void query(JdbcTemplate template, RowCallbackHandler rows) {
+				new NamedParameterJdbcTemplate(template).query(limited, params, rows);
+			}
+		}, comparator, limit);
+	}
+	
+	private interface ShardQuery {
+		void query(JdbcTemplate template, RowCallbackHandler rows);
+	}
+	
+	@Override
+	public List<T> queryAllShards(String sql, Object[] args, String orderBy, boolean desc, int limit) {
+		String ordered = sql + " order by " + orderBy + (desc ? " desc" : " asc");
+		return queryAllShards(ordered, args, orm.getComparator(orderBy, desc), limit);
+	}
+	
+	@Override
+	public List<T> queryAllShards(String sql, Map<String, Object> params, String orderBy, boolean desc, int limit) {
+		String ordered = sql + " order by " + orderBy + (desc ? " desc" : " asc");
+		return queryAllShards(ordered, params, orm.getComparator(orderBy, desc), limit);
+	}
+	
+	private static final Pattern ORDER_BY = Pattern.compile("\\border\\s+by\\b", Pattern.CASE_INSENSITIVE);
+	
+	private static void checkOrderedLimit(String sql, int limit) {
+		if(limit <= 0)
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		if(!ORDER_BY.matcher(sql).find())
+			throw new IllegalArgumentException("a limited cross shard query needs an ORDER BY matching its comparator: " + sql);
+	}
+	
+	/**
+	 * k-way merge of the shards' rows, stopping after limit rows. Each shard is
+	 * streamed by its own producer into a queue of at most mergeQueueSize rows
+	 * and the merge takes the head of every shard's queue, so memory stays at
+	 * shards * mergeQueueSize rows plus the result however large limit is.
+	 * Rows are merged in the order each shard returns them, which the ORDER BY
+	 * must make agree with comparator.
+	 */
+	private List<T> mergeSorted(final ShardQuery query, final Comparator<T> comparator, int limit) {
+		List<Integer> scanned = scanShards();
+		final Map<Integer, BlockingQueue<Object>> queues = new HashMap<Integer, BlockingQueue<Object>>();
+		for(int i : scanned) {
+			queues.put(i, new ArrayBlockingQueue<Object>(mergeQueueSize));
+		}
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		
+		ShardRunnable runnable = new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				final BlockingQueue<Object> queue = queues.get(shardId);
+				try {
+					final RowMapper<T> mapper = orm.getStreamRow(null);
+					final int[] count = new int[1];
+					query.query(new StreamingJdbcTemplate(getReadDataSource(shardId), dumpFetchSize), ownedRows(shardId, new RowCallbackHandler() {
+						@Override
+						public void processRow(ResultSet rs) throws SQLException {
+							handOff(queue, mapper.mapRow(rs, count[0]++), cancelled);
+						}
+					}));
+					metrics.recordRows("query", shardId, count[0]);
+					handOff(queue, END_OF_SHARD, cancelled);
+				} catch (Throwable e) {
+					if(cancelled.get())
+						return;
+					try {
+						handOff(queue, new DumpFailure(shardId, e), cancelled);
+					} catch (DumpCancelledException ignored) {
+					}
+				}
+			}
+		};
+		
+		metrics.recordFanOut("query", scanned.size());
+		startProducers(runnable, scanned, "query", cancelled);
+		
+		try {
+			final Map<Integer, T> heads = new HashMap<Integer, T>();
+			PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, scanned.size()), new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return comparator.compare(heads.get(a), heads.get(b));
+				}
+			});
+			for(int i : scanned) {
+				if(advance(i, queues.get(i), heads))
+					heap.add(i);
+			}
+			
+			List<T> result = new ArrayList<T>();
+			while(result.size() < limit && !heap.isEmpty()) {
+				int shard = heap.poll();
+				result.add(heads.get(shard));
+				if(advance(shard, queues.get(shard), heads))
+					heap.add(shard);
+			}
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			cancelled.set(true);
+		}
+	}
+	
+	/**
+	 * Takes the shard's next row into heads, or returns false at its end.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean advance(int shardId, BlockingQueue<Object> queue, Map<Integer, T> heads) throws InterruptedException {
+		Object obj = queue.take();
+		if(obj == END_OF_SHARD) {
+			heads.remove(shardId);
+			return false;
+		}
+		if(obj instanceof DumpFailure) {
+			DumpFailure failure = (DumpFailure) obj;
+			throw new RuntimeException("query failed on shard " + failure.shardId, failure.cause);
+		}
+		heads.put(shardId, (T) obj);
+		return true;
+	}
+	
+	@Override
+	public List<Map<String, Object>> aggregate(List<Aggregate> aggregates, String[] groupBy, String where, final Map<String, Object> params) {
+		if(isOwnerFilterRequired())
+			throw new IllegalStateException("aggregates cannot drop rows copied between shards, so they are not available while shards are migrating");
+		final AggregateMerger merger = new AggregateMerger(aggregates, groupBy);
+		final String sql = merger.getShardSql(orm.getTableName(), where);
+		ShardRunnable runnable = new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				NamedParameterJdbcTemplate namedjc = getReadNamedJdbcTemplate(shardId);
+				Map<String, Object> args = params == null ? Collections.<String, Object>emptyMap() : params;
+				List<Map<String, Object>> rows = namedjc.queryForList(sql, args);
+				metrics.recordRows("aggregate", shardId, rows.size());
+				merger.merge(rows);
+			}
+		};
+		
+		MultiTask mt = new MultiTask();
+		for(int i : scanShards()) {
+			ShardTask shardTask = newShardTask("aggregate", i, runnable);
+			mt.addTask(shardTask);
+		}
+		metrics.recordFanOut("aggregate", mt.size());
+		mt.execute(executorService);
+		
+		return merger.getResult();
+	}
+	
 	@Override
 	public void updateAllShards(final String sql, final Object[] args) {
 		MultiTask mt = new MultiTask();
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				JdbcTemplate namedjc = getShardedDataSource().getJdbcTemplate(shardId);
+				JdbcTemplate namedjc = getWriteJdbcTemplate(shardId);
 				namedjc.update(sql, args);
+				recordWrite(shardId);
 			}
 		};
 		
 		for(int i=0; i<getShardSize(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
+			ShardTask shardTask = newShardTask("update", i, runnable);
 			mt.addTask(shardTask);
 		}
-		mt.execute(executorService);
+		try {
+			metrics.recordFanOut("update", mt.size());
+			mt.execute(executorService);
+		} finally {
+			evictAll();
+			dropIdFilters();
+		}
 	}
 	
 	@Override
@@ -403,17 +1847,24 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				JdbcTemplate namedjc = getShardedDataSource().getJdbcTemplate(shardId);
+				JdbcTemplate namedjc = getWriteJdbcTemplate(shardId);
 				namedjc.update(sql, args.get(shardId));
+				recordWrite(shardId);
 			}
 		};
 		
 		for(Entry<Integer, Object[]> entry : args.entrySet()) {
 			int shardId = entry.getKey();
-			ShardTask shardTask = new ShardTask(shardId, runnable);
+			ShardTask shardTask = newShardTask("update", shardId, runnable);
 			mt.addTask(shardTask);
 		}
-		mt.execute(executorService);
+		try {
+			metrics.recordFanOut("update", mt.size());
+			mt.execute(executorService);
+		} finally {
+			evictAll();
+			dropIdFilters();
+		}
 	}
 	
 	@Override
@@ -422,16 +1873,23 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				JdbcTemplate namedjc = getShardedDataSource().getJdbcTemplate(shardId);
+				JdbcTemplate namedjc = getWriteJdbcTemplate(shardId);
 				namedjc.update(sql, args.get(shardId));
+				recordWrite(shardId);
 			}
 		};
 		
 		for(int i=0; i<getShardSize(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
+			ShardTask shardTask = newShardTask("update", i, runnable);
 			mt.addTask(shardTask);
 		}
-		mt.execute(executorService);
+		try {
+			metrics.recordFanOut("update", mt.size());
+			mt.execute(executorService);
+		} finally {
+			evictAll();
+			dropIdFilters();
+		}
 	}
 	
 	@Override
@@ -440,19 +1898,504 @@ public abstract class ClusterDataDaoImpl<T> implements ClusterDataDao<T> {
 		ShardRunnable runnable = new ShardRunnable() {
 			@Override
 			public void run(int shardId) {
-				NamedParameterJdbcTemplate namedjc = getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+				NamedParameterJdbcTemplate namedjc = getWriteNamedJdbcTemplate(shardId);
 				namedjc.update(sql, params);
+				recordWrite(shardId);
 			}
 		};
 		
 		for(int i=0; i<getShardSize(); i++) {
-			ShardTask shardTask = new ShardTask(i, runnable);
+			ShardTask shardTask = newShardTask("update", i, runnable);
 			mt.addTask(shardTask);
 		}
-		mt.execute(executorService);
+		try {
+			metrics.recordFanOut("update", mt.size());
+			mt.execute(executorService);
+		} finally {
+			evictAll();
+			dropIdFilters();
+		}
+	}
+	
+	@Override
+	public CompletableFuture<T> getAsync(final String id) {
+		final ConsistencySession session = captureSession();
+		return CompletableFuture.supplyAsync(new Supplier<T>() {
+			@Override
+			public T get() {
+				ConsistencySession previous = enterSession(session);
+				try {
+					return ClusterDataDaoImpl.this.get(id);
+				} finally {
+					exitSession(previous);
+				}
+			}
+		}, executorService);
+	}
+	
+	@Override
+	public CompletableFuture<List<T>> getAsync(List<String> ids) {
+		final Queue<T> result = new ConcurrentLinkedQueue<T>();
+		ids = collectCached(ids, result);
+		return runAllAsync(idChunkTasks("get", splitIdsByShard(ids), new ShardIdsRunnable() {
+			@Override
+			public void run(int shardId, List<String> chunk) {
+				result.addAll(getInShard(shardId, chunk));
+			}
+		})).thenApply(new Function<Void, List<T>>() {
+			@Override
+			public List<T> apply(Void ignored) {
+				return new ArrayList<T>(result);
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Set<String>> existingIdsAsync(List<String> ids) {
+		final Set<String> result = ConcurrentHashMap.newKeySet();
+		ids = maybeExistingIds(ids);
+		return runAllAsync(idChunkTasks("existingIds", splitIdsByShard(ids), new ShardIdsRunnable() {
+			@Override
+			public void run(int shardId, List<String> chunk) {
+				result.addAll(existingIdsInShard(shardId, chunk));
+			}
+		})).thenApply(new Function<Void, Set<String>>() {
+			@Override
+			public Set<String> apply(Void ignored) {
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * With write-behind the value is buffered before this returns, in order
+	 * with the caller's other writes, and the future is already complete.
+	 */
+	@Override
+	public CompletableFuture<Void> replaceAsync(final T data) {
+		if(writeBehindMillis > 0) {
+			replace(data);
+			return CompletableFuture.completedFuture(null);
+		}
+		final ConsistencySession session = captureSession();
+		return CompletableFuture.runAsync(new Runnable() {
+			@Override
+			public void run() {
+				ConsistencySession previous = enterSession(session);
+				try {
+					replace(data);
+				} finally {
+					exitSession(previous);
+				}
+			}
+		}, executorService);
+	}
+	
+	/**
+	 * Buffered like replaceAsync(T) with write-behind, so it never races a
+	 * flush of older values.
+	 */
+	@Override
+	public CompletableFuture<Void> replaceAsync(List<T> data) {
+		final Map<Integer, List<T>> shardedData = splitByShard(data);
+		if(writeBehindMillis > 0) {
+			bufferWrites(shardedData);
+			return CompletableFuture.completedFuture(null);
+		}
+		return runOnShardsAsync("replace", shardedData.keySet(), new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				replaceInShard(shardId, shardedData.get(shardId));
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> removeAsync(String id) {
+		return removeAsync(Collections.singletonList(id));
+	}
+	
+	@Override
+	public CompletableFuture<Void> removeAsync(List<String> ids) {
+		recordDeletes(ids);
+		return runAllAsync(idChunkTasks("remove", splitIdsForWrite(ids), new ShardIdsRunnable() {
+			@Override
+			public void run(int shardId, List<String> chunk) {
+				removeInShard(shardId, chunk);
+			}
+		}));
+	}
+	
+	@Override
+	public CompletableFuture<List<T>> queryAllShardsAsync(final String sql, final Object[] args) {
+		return supplyOnShards("query", scanShards(), new ShardCallable<List<T>>() {
+			@Override
+			public List<T> call(int shardId) {
+				return ownedRows(shardId, orm.queryBySql(getReadJdbcTemplate(shardId), sql, args));
+			}
+		}).thenApply(new Function<List<List<T>>, List<T>>() {
+			@Override
+			public List<T> apply(List<List<T>> shardResults) {
+				List<T> result = new ArrayList<T>();
+				for(List<T> data : shardResults) {
+					result.addAll(data);
+				}
+				return result;
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<List<T>> queryAllShardsAsync(final String sql, final Map<String, Object> params) {
+		return supplyOnShards("query", scanShards(), new ShardCallable<List<T>>() {
+			@Override
+			public List<T> call(int shardId) {
+				return ownedRows(shardId, orm.queryBySql(getReadNamedJdbcTemplate(shardId), sql, params));
+			}
+		}).thenApply(new Function<List<List<T>>, List<T>>() {
+			@Override
+			public List<T> apply(List<List<T>> shardResults) {
+				List<T> result = new ArrayList<T>();
+				for(List<T> data : shardResults) {
+					result.addAll(data);
+				}
+				return result;
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> updateAllShardsAsync(final String sql, final Object[] args) {
+		return runOnShardsAsync("update", allShards(), new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				getWriteJdbcTemplate(shardId).update(sql, args);
+				recordWrite(shardId);
+			}
+		}).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void ignored, Throwable e) {
+				evictAll();
+				dropIdFilters();
+			}
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> updateAllShardsAsync(final String sql, final Map<String, Object> params) {
+		return runOnShardsAsync("update", allShards(), new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				getWriteNamedJdbcTemplate(shardId).update(sql, params);
+				recordWrite(shardId);
+			}
+		}).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void ignored, Throwable e) {
+				evictAll();
+				dropIdFilters();
+			}
+		});
+	}
+	
+	protected <V> CompletableFuture<List<V>> supplyOnShards(final String operation, Collection<Integer> shardIds, final ShardCallable<V> callable) {
+		metrics.recordFanOut(operation, shardIds.size());
+		final List<CompletableFuture<V>> futures = new ArrayList<CompletableFuture<V>>(shardIds.size());
+		for(final int shardId : shardIds) {
+			final List<V> result = new ArrayList<V>(1);
+			final ShardTask task = newShardTask(operation, shardId, new ShardRunnable() {
+				@Override
+				public void run(int shardId) {
+					result.add(callable.call(shardId));
+				}
+			});
+			futures.add(submit(task, new Supplier<V>() {
+				@Override
+				public V get() {
+					task.run();
+					return result.get(0);
+				}
+			}));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void, List<V>>() {
+			@Override
+			public List<V> apply(Void ignored) {
+				List<V> results = new ArrayList<V>(futures.size());
+				for(CompletableFuture<V> future : futures) {
+					results.add(future.join());
+				}
+				return results;
+			}
+		});
+	}
+	
+	protected CompletableFuture<Void> runOnShardsAsync(String operation, Collection<Integer> shardIds, final ShardRunnable runnable) {
+		metrics.recordFanOut(operation, shardIds.size());
+		List<Runnable> tasks = new ArrayList<Runnable>(shardIds.size());
+		for(int shardId : shardIds) {
+			tasks.add(newShardTask(operation, shardId, runnable));
+		}
+		return runAllAsync(tasks);
+	}
+	
+	protected CompletableFuture<Void> runAllAsync(List<Runnable> tasks) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks.size()];
+		for(int i=0; i<futures.length; i++) {
+			final Runnable task = tasks.get(i);
+			futures[i] = submit(task, new Supplier<Void>() {
+				@Override
+				public Void get() {
+					task.run();
+					return null;
+				}
+			});
+		}
+		return CompletableFuture.allOf(futures);
+	}
+	
+	/**
+	 * Hands supplier to the executor, after task's submitting() ran on this
+	 * thread. A task that fails to submit fails the returned future.
+	 */
+	private <V> CompletableFuture<V> submit(Runnable task, Supplier<V> supplier) {
+		if(!(task instanceof MultiTask.SubmitAware))
+			return CompletableFuture.supplyAsync(supplier, executorService);
+		MultiTask.SubmitAware aware = (MultiTask.SubmitAware) task;
+		try {
+			aware.submitting();
+		} catch (RuntimeException e) {
+			CompletableFuture<V> failed = new CompletableFuture<V>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		try {
+			return CompletableFuture.supplyAsync(supplier, executorService);
+		} catch (RuntimeException e) {
+			aware.submitFailed();
+			throw e;
+		}
+	}
+	
+	/**
+	 * The task runs in the caller's consistency session, whichever thread runs
+	 * it, so should be created on the caller's thread.
+	 */
+	protected ShardTask newShardTask(String operation, int shardId, ShardRunnable runnable) {
+		return new ShardTask(shardId, inSession(runnable), shardBulkhead, metrics, operation);
+	}
+	
+	protected List<Integer> allShards() {
+		List<Integer> shards = new ArrayList<Integer>(getShardSize());
+		for(int i=0; i<getShardSize(); i++) {
+			shards.add(i);
+		}
+		return shards;
 	}
 	
 	public void setExecutorService(ExecutorService executorService) {
 		this.executorService = executorService;
 	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public void setBatchSize(int batchSize) {
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		this.batchSize = batchSize;
+	}
+	
+	public int getDumpFetchSize() {
+		return dumpFetchSize;
+	}
+	
+	/**
+	 * Fetch size of dumps, exports and the id filter scan. Set it to
+	 * Integer.MIN_VALUE on MySQL to stream rows instead of buffering each
+	 * shard's whole result.
+	 */
+	public void setDumpFetchSize(int dumpFetchSize) {
+		this.dumpFetchSize = dumpFetchSize;
+	}
+	
+	public ObjectCache getEntityCache() {
+		return entityCache;
+	}
+	
+	public void setEntityCache(ObjectCache entityCache) {
+		this.entityCache = entityCache;
+	}
+	
+	public int getInListSize() {
+		return inListSize;
+	}
+	
+	public void setInListSize(int inListSize) {
+		if(inListSize <= 0)
+			throw new IllegalArgumentException("in list size must be positive: " + inListSize);
+		this.inListSize = inListSize;
+	}
+	
+	public int getInListParallelism() {
+		return inListParallelism;
+	}
+	
+	public void setInListParallelism(int inListParallelism) {
+		if(inListParallelism <= 0)
+			throw new IllegalArgumentException("in list parallelism must be positive: " + inListParallelism);
+		this.inListParallelism = inListParallelism;
+	}
+	
+	public long getIdFilterExpectedInsertions() {
+		return idFilterExpectedInsertions;
+	}
+	
+	public void setIdFilterExpectedInsertions(long idFilterExpectedInsertions) {
+		this.idFilterExpectedInsertions = idFilterExpectedInsertions;
+	}
+	
+	public double getIdFilterFpp() {
+		return idFilterFpp;
+	}
+	
+	public void setIdFilterFpp(double idFilterFpp) {
+		this.idFilterFpp = idFilterFpp;
+	}
+	
+	public long getIdFilterRescanMarginMillis() {
+		return idFilterRescanMarginMillis;
+	}
+	
+	/**
+	 * How far before a save loadIdFilters starts rescanning, to cover writes in
+	 * flight during the save and clocks of other writers running behind.
+	 */
+	public void setIdFilterRescanMarginMillis(long idFilterRescanMarginMillis) {
+		this.idFilterRescanMarginMillis = idFilterRescanMarginMillis;
+	}
+	
+	public int getExportChunkSize() {
+		return exportChunkSize;
+	}
+	
+	public void setExportChunkSize(int exportChunkSize) {
+		this.exportChunkSize = exportChunkSize;
+	}
+	
+	public ShardedDataSource getHedgeDataSource() {
+		return hedgeDataSource;
+	}
+	
+	public void setHedgeDataSource(ShardedDataSource hedgeDataSource) {
+		this.hedgeDataSource = hedgeDataSource;
+	}
+	
+	public long getWriteBehindMillis() {
+		return writeBehindMillis;
+	}
+	
+	/**
+	 * Buffers replace() calls and flushes them at most this many millis later,
+	 * keeping only the last value written per id. get() by id sees buffered
+	 * values; queries, dumps and existingIds only see flushed ones. Buffered
+	 * writes are lost if the process dies before a flush. 0 writes through.
+	 */
+	public void setWriteBehindMillis(long writeBehindMillis) {
+		this.writeBehindMillis = writeBehindMillis;
+	}
+	
+	public int getWriteBehindMaxPending() {
+		return writeBehindMaxPending;
+	}
+	
+	/**
+	 * Ids buffered in total before writers flush in their own thread, and are
+	 * rejected while that flush fails.
+	 */
+	public void setWriteBehindMaxPending(int writeBehindMaxPending) {
+		this.writeBehindMaxPending = writeBehindMaxPending;
+	}
+	
+	public int getPendingWriteCount() {
+		return pendingCount.get();
+	}
+	
+	/**
+	 * Number of timer flushes that failed. Their writes stay buffered and are
+	 * retried by the next flush.
+	 */
+	public long getFlushFailureCount() {
+		return flushFailures.get();
+	}
+	
+	public RuntimeException getLastFlushFailure() {
+		return lastFlushFailure;
+	}
+	
+	public ShardMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Per shard latency, queue wait, row, byte and fan-out measurements.
+	 * Defaults to NoOpShardMetrics.
+	 */
+	public void setMetrics(ShardMetrics metrics) {
+		this.metrics = metrics == null ? NoOpShardMetrics.INSTANCE : metrics;
+	}
+	
+	public ShardBulkhead getShardBulkhead() {
+		return shardBulkhead;
+	}
+	
+	/**
+	 * Adaptive per shard concurrency limits for the shard fan-out. A shard at
+	 * its limit sheds further calls with a ShardOverloadedException instead of
+	 * tying up the shared executor. Long running dumps, exports, sorted merges
+	 * and the id filter scan are not limited.
+	 */
+	public void setShardBulkhead(ShardBulkhead shardBulkhead) {
+		this.shardBulkhead = shardBulkhead;
+	}
+	
+	public long getReadYourWritesMillis() {
+		return readYourWritesMillis;
+	}
+	
+	/**
+	 * Keeps a caller's reads of a shard on its primary for this long after the
+	 * same caller wrote to it, to hide replica lag. The caller is the thread's
+	 * consistency session, see getConsistencySession. 0 always reads from
+	 * replicas when present.
+	 */
+	public void setReadYourWritesMillis(long readYourWritesMillis) {
+		this.readYourWritesMillis = readYourWritesMillis;
+	}
+	
+	public void setHedgeScheduler(ScheduledExecutorService hedgeScheduler) {
+		this.hedgeScheduler = hedgeScheduler;
+	}
+	
+	public int getDumpQueueSize() {
+		return dumpQueueSize;
+	}
+	
+	public void setDumpQueueSize(int dumpQueueSize) {
+		this.dumpQueueSize = dumpQueueSize;
+	}
+	
+	public int getMergeQueueSize() {
+		return mergeQueueSize;
+	}
+	
+	/**
+	 * Rows each shard may stream ahead of a sorted, limited cross shard query's
+	 * merge.
+	 */
+	public void setMergeQueueSize(int mergeQueueSize) {
+		if(mergeQueueSize <= 0)
+			throw new IllegalArgumentException("merge queue size must be positive: " + mergeQueueSize);
+		this.mergeQueueSize = mergeQueueSize;
+	}
 }
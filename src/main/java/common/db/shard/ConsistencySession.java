@@ -0,0 +1,33 @@
+package common.db.shard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shards one caller wrote to and when, so that caller's reads of them stay on
+ * the primary while replicas may lag. The dao keeps a session per thread and
+ * carries it onto the executor threads working for the caller; a session
+ * can also be handed from one thread to another as a token, see
+ * ClusterDataDaoImpl.setConsistencySession.
+ */
+public class ConsistencySession {
+	private final Map<Integer, Long> lastWrites = new ConcurrentHashMap<Integer, Long>();
+	
+	public void recordWrite(int shardId) {
+		lastWrites.put(shardId, System.currentTimeMillis());
+	}
+	
+	public boolean isRecentlyWritten(int shardId, long windowMillis) {
+		Long last = lastWrites.get(shardId);
+		if(last == null)
+			return false;
+		if(System.currentTimeMillis() - last < windowMillis)
+			return true;
+		lastWrites.remove(shardId, last);
+		return false;
+	}
+	
+	public void clear() {
+		lastWrites.clear();
+	}
+}
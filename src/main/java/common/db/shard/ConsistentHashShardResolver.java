@@ -0,0 +1,78 @@
+package common.db.shard;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import common.util.Hashing;
+
+/**
+ * Consistent hashing over a ring of virtual nodes. Each shard owns
+ * virtualNodes * weight points of the ring and an id belongs to the first
+ * point at or after its hash. Points of a shard only depend on the shard
+ * number, so adding shard N moves roughly 1/(N+1) of the ids and nothing
+ * else.
+ */
+public class ConsistentHashShardResolver implements ShardResolver {
+	private static final long SEED = 0x5bd1e9955bd1e995L;
+
+	private long[] ring;
+	private int[] owners;
+	private int shards;
+
+	public ConsistentHashShardResolver(int shards, int virtualNodes) {
+		this(equalWeights(shards), virtualNodes);
+	}
+
+	public ConsistentHashShardResolver(int[] weights, int virtualNodes) {
+		this.shards = weights.length;
+		int points = 0;
+		for(int weight : weights) {
+			points += weight * virtualNodes;
+		}
+		long[][] pairs = new long[points][];
+		int n = 0;
+		for(int shard=0; shard<weights.length; shard++) {
+			for(int v=0; v<weights[shard] * virtualNodes; v++) {
+				pairs[n++] = new long[] {Hashing.fmix64(SEED ^ (((long) shard << 32) | v)), shard};
+			}
+		}
+		Arrays.sort(pairs, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		ring = new long[points];
+		owners = new int[points];
+		for(int i=0; i<points; i++) {
+			ring[i] = pairs[i][0];
+			owners[i] = (int) pairs[i][1];
+		}
+	}
+
+	private static int[] equalWeights(int shards) {
+		int[] weights = new int[shards];
+		Arrays.fill(weights, 1);
+		return weights;
+	}
+
+	@Override
+	public int getShardId(String id) {
+		long hash = Hashing.hash64(id);
+		int low = 0;
+		int high = ring.length - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(ring[mid] < hash)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return owners[low == ring.length ? 0 : low];
+	}
+
+	@Override
+	public int size() {
+		return shards;
+	}
+}
@@ -0,0 +1,51 @@
+package common.db.shard;
+
+public class Deadline {
+	public static enum OnTimeout {
+		FAIL,
+		PARTIAL
+	}
+	
+	private long timeoutMillis;
+	private OnTimeout onTimeout;
+	private boolean hedge;
+	private double hedgePercentile = 0.95;
+	private long minHedgeDelayMillis = 10;
+	
+	public Deadline(long timeoutMillis, OnTimeout onTimeout) {
+		this.timeoutMillis = timeoutMillis;
+		this.onTimeout = onTimeout;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public OnTimeout getOnTimeout() {
+		return onTimeout;
+	}
+
+	public boolean isHedge() {
+		return hedge;
+	}
+
+	public void setHedge(boolean hedge) {
+		this.hedge = hedge;
+	}
+
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	public void setHedgePercentile(double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public long getMinHedgeDelayMillis() {
+		return minHedgeDelayMillis;
+	}
+
+	public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+		this.minHedgeDelayMillis = minHedgeDelayMillis;
+	}
+}
@@ -0,0 +1,27 @@
+package common.db.shard;
+
+import common.db.util.GUID;
+
+/**
+ * Routes ids minted by GUID (or CompactId) on the shard number carried in
+ * their first three hex chars. The chars are decoded in place, no substring
+ * or boxing. Prefixes beyond the number of physical shards wrap around, so
+ * ids can be minted for more logical shards than are deployed.
+ */
+public class GuidShardResolver implements ShardResolver {
+	private int shards;
+	
+	public GuidShardResolver(int shards) {
+		this.shards = shards;
+	}
+
+	@Override
+	public int getShardId(String id) {
+		return GUID.extractShardId(id) % shards;
+	}
+
+	@Override
+	public int size() {
+		return shards;
+	}
+}
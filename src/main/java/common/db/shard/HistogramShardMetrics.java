@@ -0,0 +1,154 @@
+package common.db.shard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.util.LogHistogram;
+
+/**
+ * Keeps a latency and a queue wait histogram plus row and byte counters per
+ * operation and shard, and a fan-out width histogram per operation. Bytes are
+ * only counted by exports, see ShardMetrics.recordBytes. After the first call
+ * for an operation and shard, recording does not allocate.
+ */
+public class HistogramShardMetrics implements ShardMetrics {
+	private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+	@Override
+	public void recordLatency(String operation, int shardId, long nanos) {
+		operation(operation).shard(shardId).latency.record(nanos);
+	}
+
+	@Override
+	public void recordQueueWait(String operation, int shardId, long nanos) {
+		operation(operation).shard(shardId).queueWait.record(nanos);
+	}
+
+	@Override
+	public void recordRows(String operation, int shardId, long rows) {
+		operation(operation).shard(shardId).rows.addAndGet(rows);
+	}
+
+	@Override
+	public void recordBytes(String operation, int shardId, long bytes) {
+		operation(operation).shard(shardId).bytes.addAndGet(bytes);
+	}
+
+	@Override
+	public void recordFanOut(String operation, int shards) {
+		operation(operation).fanOut.record(shards);
+	}
+	
+	private Operation operation(String name) {
+		Operation operation = operations.get(name);
+		if(operation == null) {
+			operations.putIfAbsent(name, new Operation());
+			operation = operations.get(name);
+		}
+		return operation;
+	}
+	
+	public void reset() {
+		operations.clear();
+	}
+
+	/**
+	 * operation -> {fanOut, shards -> shard -> {latency, queueWait, rows, bytes}},
+	 * with times in microseconds.
+	 */
+	@Override
+	public Map<String, Object> snapshot() {
+		Map<String, Object> result = new TreeMap<String, Object>();
+		for(Entry<String, Operation> entry : operations.entrySet()) {
+			Operation operation = entry.getValue();
+			Map<String, Object> op = new LinkedHashMap<String, Object>();
+			op.put("fanOut", summary(operation.fanOut, 1));
+			Map<Integer, Object> shards = new TreeMap<Integer, Object>();
+			Shard[] current = operation.shards;
+			for(int i=0; i<current.length; i++) {
+				if(current[i] == null)
+					continue;
+				Map<String, Object> shard = new LinkedHashMap<String, Object>();
+				shard.put("latency", summary(current[i].latency, 1000));
+				shard.put("queueWait", summary(current[i].queueWait, 1000));
+				shard.put("rows", current[i].rows.get());
+				shard.put("bytes", current[i].bytes.get());
+				shards.put(i, shard);
+			}
+			op.put("shards", shards);
+			result.put(entry.getKey(), op);
+		}
+		return result;
+	}
+	
+	private static Map<String, Object> summary(LogHistogram histogram, long unit) {
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("count", histogram.getCount());
+		summary.put("mean", histogram.getMean() / unit);
+		summary.put("p50", histogram.percentile(0.5) / unit);
+		summary.put("p90", histogram.percentile(0.9) / unit);
+		summary.put("p99", histogram.percentile(0.99) / unit);
+		summary.put("max", histogram.getMax() / unit);
+		return summary;
+	}
+	
+	/**
+	 * One line per operation and shard, times in microseconds.
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		for(Entry<String, Object> entry : snapshot().entrySet()) {
+			Map<?, ?> op = (Map<?, ?>) entry.getValue();
+			text.append(entry.getKey()).append(" fanOut ").append(op.get("fanOut")).append('\n');
+			for(Entry<?, ?> shard : ((Map<?, ?>) op.get("shards")).entrySet()) {
+				Map<?, ?> stats = (Map<?, ?>) shard.getValue();
+				text.append(entry.getKey()).append(" shard ").append(shard.getKey())
+					.append(" latency_us ").append(stats.get("latency"))
+					.append(" queueWait_us ").append(stats.get("queueWait"))
+					.append(" rows ").append(stats.get("rows"))
+					.append(" bytes ").append(stats.get("bytes")).append('\n');
+			}
+		}
+		return text.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return toText();
+	}
+	
+	private static class Operation {
+		private final LogHistogram fanOut = new LogHistogram();
+		private volatile Shard[] shards = new Shard[0];
+		
+		private Shard shard(int shardId) {
+			Shard[] current = shards;
+			if(shardId < current.length && current[shardId] != null)
+				return current[shardId];
+			synchronized (this) {
+				if(shardId >= shards.length) {
+					Shard[] grown = new Shard[Math.max(shardId + 1, shards.length * 2)];
+					System.arraycopy(shards, 0, grown, 0, shards.length);
+					shards = grown;
+				}
+				if(shards[shardId] == null) {
+					Shard[] copy = shards.clone();
+					copy[shardId] = new Shard();
+					shards = copy;
+				}
+				return shards[shardId];
+			}
+		}
+	}
+	
+	private static class Shard {
+		private final LogHistogram latency = new LogHistogram();
+		private final LogHistogram queueWait = new LogHistogram();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+	}
+}
@@ -0,0 +1,107 @@
+package common.db.shard;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolver used while rows move from one shard layout to another. While
+ * copying, reads go to the old layout and writes go to both; after cutover
+ * reads and writes only use the new layout. Until cleanup is done a row can
+ * sit in two shards of the layout being read, so scans drop rows the shard
+ * does not own (see isOwnerFilterRequired).
+ * <p>
+ * Ids deleted while copying are kept as tombstones, so the copy can undo
+ * inserting a row that was deleted after it read it. Rows deleted by plain SQL
+ * updates are not tracked.
+ */
+public class MigratingShardResolver implements ShardResolver {
+	public static enum Phase {
+		COPYING,
+		CUTOVER,
+		DONE
+	}
+	
+	private ShardResolver oldResolver;
+	private ShardResolver newResolver;
+	private volatile Phase phase = Phase.COPYING;
+	private final Set<String> tombstones = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	public MigratingShardResolver(ShardResolver oldResolver, ShardResolver newResolver) {
+		this.oldResolver = oldResolver;
+		this.newResolver = newResolver;
+	}
+
+	@Override
+	public int getShardId(String id) {
+		return phase == Phase.COPYING ? oldResolver.getShardId(id) : newResolver.getShardId(id);
+	}
+	
+	/**
+	 * @return the second shard a write of id must also go to, or -1 when one
+	 * shard is enough.
+	 */
+	public int getMirrorShardId(String id) {
+		if(phase != Phase.COPYING)
+			return -1;
+		int from = oldResolver.getShardId(id);
+		int to = newResolver.getShardId(id);
+		return from == to ? -1 : to;
+	}
+
+	/**
+	 * Shards holding every row once: the old layout while copying, the new one
+	 * afterwards. size() covers both layouts, for writes to every shard.
+	 */
+	public int getScanSize() {
+		return phase == Phase.COPYING ? oldResolver.size() : newResolver.size();
+	}
+	
+	/**
+	 * @return true while a scanned shard may also hold copies of rows owned by
+	 * another shard, so rows must be checked against getShardId.
+	 */
+	public boolean isOwnerFilterRequired() {
+		return phase != Phase.DONE;
+	}
+	
+	/**
+	 * Records the delete of id while copying, if the row also lives in a new
+	 * shard the copy could write it to.
+	 */
+	public void recordDelete(String id) {
+		if(phase == Phase.COPYING && getMirrorShardId(id) >= 0)
+			tombstones.add(id);
+	}
+	
+	public boolean isDeleted(String id) {
+		return tombstones.contains(id);
+	}
+
+	@Override
+	public int size() {
+		return Math.max(oldResolver.size(), newResolver.size());
+	}
+
+	public ShardResolver getOldResolver() {
+		return oldResolver;
+	}
+
+	public ShardResolver getNewResolver() {
+		return newResolver;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Tombstones are dropped once copying ends, since the copy is finished and
+	 * deletes reach the new layout directly.
+	 */
+	public void setPhase(Phase phase) {
+		this.phase = phase;
+		if(phase != Phase.COPYING)
+			tombstones.clear();
+	}
+}
@@ -0,0 +1,33 @@
+package common.db.shard;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class NoOpShardMetrics implements ShardMetrics {
+	public static final NoOpShardMetrics INSTANCE = new NoOpShardMetrics();
+
+	@Override
+	public void recordLatency(String operation, int shardId, long nanos) {
+	}
+
+	@Override
+	public void recordQueueWait(String operation, int shardId, long nanos) {
+	}
+
+	@Override
+	public void recordRows(String operation, int shardId, long rows) {
+	}
+
+	@Override
+	public void recordBytes(String operation, int shardId, long bytes) {
+	}
+
+	@Override
+	public void recordFanOut(String operation, int shards) {
+	}
+
+	@Override
+	public Map<String, Object> snapshot() {
+		return Collections.emptyMap();
+	}
+}
@@ -0,0 +1,25 @@
+package common.db.shard;
+
+import java.util.List;
+
+public class PartialResult<T> {
+	private List<T> result;
+	private List<Integer> missingShards;
+	
+	public PartialResult(List<T> result, List<Integer> missingShards) {
+		this.result = result;
+		this.missingShards = missingShards;
+	}
+
+	public List<T> getResult() {
+		return result;
+	}
+
+	public List<Integer> getMissingShards() {
+		return missingShards;
+	}
+	
+	public boolean isComplete() {
+		return missingShards.isEmpty();
+	}
+}
@@ -0,0 +1,7 @@
+package common.db.shard;
+
+public enum ReadRoutingPolicy {
+	ROUND_ROBIN,
+	LEAST_OUTSTANDING,
+	LATENCY_WEIGHTED
+}
@@ -0,0 +1,196 @@
+package common.db.shard;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per shard concurrency limits adapted AIMD style. A call that finishes near
+ * the shard's best observed latency grows the limit by 1/limit, a slow or
+ * failed call shrinks it by the backoff factor, so a degraded shard quickly
+ * drops to a few threads and connections while healthy shards keep theirs.
+ * Calls over the limit wait up to maxWaitMillis, at most maxQueued per shard,
+ * and are shed with a ShardOverloadedException after that. The best latency
+ * is tracked per operation, so a slow kind of call, such as a scan, is not
+ * measured against the latency of point reads.
+ */
+public class ShardBulkhead {
+	private Limit[] limits;
+	private int minLimit = 1;
+	private int maxLimit = 64;
+	private double backoff = 0.9;
+	private double tolerance = 2.0;
+	private int maxQueued = 16;
+	private long maxWaitMillis = 50;
+	
+	public ShardBulkhead(int shards) {
+		this(shards, 8);
+	}
+	
+	public ShardBulkhead(int shards, int initialLimit) {
+		limits = new Limit[shards];
+		for(int i=0; i<shards; i++) {
+			limits[i] = new Limit(initialLimit);
+		}
+	}
+	
+	/**
+	 * Takes a permit if the shard is under its limit, without waiting.
+	 */
+	public boolean tryAcquire(int shardId) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			if(l.inFlight >= (int) l.limit)
+				return false;
+			l.inFlight++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Takes a permit, waiting for one as the class comment describes.
+	 */
+	public void acquire(int shardId) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			if(l.inFlight < (int) l.limit) {
+				l.inFlight++;
+				return;
+			}
+			if(l.waiting >= maxQueued || maxWaitMillis <= 0)
+				throw new ShardOverloadedException(shardId);
+			l.waiting++;
+			try {
+				long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+				while(l.inFlight >= (int) l.limit) {
+					long left = until - System.nanoTime();
+					if(left <= 0)
+						throw new ShardOverloadedException(shardId);
+					TimeUnit.NANOSECONDS.timedWait(l, left);
+				}
+				l.inFlight++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ShardOverloadedException(shardId);
+			} finally {
+				l.waiting--;
+			}
+		}
+	}
+	
+	public void release(int shardId, long elapsedNanos, boolean failed) {
+		release(shardId, null, elapsedNanos, failed);
+	}
+	
+	/**
+	 * Returns the permit taken by acquire and feeds the call's latency into the
+	 * shard's limit, compared with the best latency of the same operation.
+	 */
+	public void release(int shardId, String operation, long elapsedNanos, boolean failed) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			boolean saturated = l.inFlight >= (int) l.limit;
+			l.inFlight--;
+			Long best = l.baselines.get(operation);
+			long baseline = best == null ? 0 : best;
+			if(failed || (baseline > 0 && elapsedNanos > baseline * tolerance)) {
+				l.limit = Math.max(minLimit, l.limit * backoff);
+			}
+			else if(saturated) {
+				l.limit = Math.min(maxLimit, l.limit + 1 / l.limit);
+			}
+			// best latency seen, drifting up slowly so a lasting change in load is adopted
+			if(!failed)
+				l.baselines.put(operation, baseline == 0 || elapsedNanos < baseline ? elapsedNanos : baseline + (elapsedNanos - baseline) / 100);
+			l.notify();
+		}
+	}
+	
+	/**
+	 * Returns a permit for a call that never ran, leaving the limit alone.
+	 */
+	public void cancel(int shardId) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			l.inFlight--;
+			l.notify();
+		}
+	}
+	
+	public int getLimit(int shardId) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			return (int) l.limit;
+		}
+	}
+	
+	public int getInFlight(int shardId) {
+		Limit l = limits[shardId];
+		synchronized (l) {
+			return l.inFlight;
+		}
+	}
+	
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	public void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+	}
+
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	public void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+	}
+
+	public double getBackoff() {
+		return backoff;
+	}
+
+	public void setBackoff(double backoff) {
+		this.backoff = backoff;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * How many times the shard's best latency a call may take before it
+	 * counts as a sign of overload.
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	private static class Limit {
+		private double limit;
+		private int inFlight;
+		private int waiting;
+		private Map<String, Long> baselines = new HashMap<String, Long>();
+		
+		public Limit(int limit) {
+			this.limit = limit;
+		}
+	}
+}
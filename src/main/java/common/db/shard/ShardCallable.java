@@ -0,0 +1,5 @@
+package common.db.shard;
+
+public interface ShardCallable<V> {
+	V call(int shardId);
+}
@@ -0,0 +1,7 @@
+package common.db.shard;
+
+import java.util.List;
+
+public interface ShardIdsRunnable {
+	void run(int shardId, List<String> ids);
+}
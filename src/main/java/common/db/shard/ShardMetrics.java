@@ -0,0 +1,21 @@
+package common.db.shard;
+
+import java.util.Map;
+
+/**
+ * Receives per shard, per operation measurements from ClusterDataDaoImpl.
+ * Calls happen on the query path, so implementations must be thread safe and
+ * cheap. Operations are short constant names such as "get" or "query".
+ */
+public interface ShardMetrics {
+	void recordLatency(String operation, int shardId, long nanos);
+	void recordQueueWait(String operation, int shardId, long nanos);
+	void recordRows(String operation, int shardId, long rows);
+	/**
+	 * Bytes the dao encoded for the caller, which only exports do. Reads hand
+	 * out entities and report rows; the bytes the driver moved are not known.
+	 */
+	void recordBytes(String operation, int shardId, long bytes);
+	void recordFanOut(String operation, int shards);
+	Map<String, Object> snapshot();
+}
@@ -0,0 +1,16 @@
+package common.db.shard;
+
+public class ShardOverloadedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	private int shardId;
+	
+	public ShardOverloadedException(int shardId) {
+		super("shard " + shardId + " is at its concurrency limit");
+		this.shardId = shardId;
+	}
+
+	public int getShardId() {
+		return shardId;
+	}
+}
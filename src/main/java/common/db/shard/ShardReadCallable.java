@@ -0,0 +1,5 @@
+package common.db.shard;
+
+public interface ShardReadCallable<V> {
+	V call(int shardId, ShardedDataSource source);
+}
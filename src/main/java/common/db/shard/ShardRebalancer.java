@@ -0,0 +1,276 @@
+package common.db.shard;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import common.db.util.ORMClass;
+import common.util.MultiTask;
+import common.util.RateLimiter;
+
+/**
+ * Moves rows between shard layouts while the dao keeps serving traffic. The
+ * dao must resolve shards through the given MigratingShardResolver so writes
+ * made during the copy reach both layouts.
+ * <ol>
+ * <li>copy: every old shard is scanned in id order, in parallel, and rows
+ * whose new shard differs are inserted there unless already present (a dual
+ * write got there first and is at least as new).</li>
+ * <li>cutover: the resolver switches reads and writes to the new layout.</li>
+ * <li>cleanup: the moved rows are deleted from their old shards in chunks,
+ * then the resolver is marked done.</li>
+ * </ol>
+ * Each shard's progress is checkpointed after every batch, so a stopped run
+ * resumes where it left off, and batches are throttled to a maximum rate.
+ */
+public class ShardRebalancer<T> {
+	private ClusterDataDaoImpl<T> dao;
+	private MigratingShardResolver resolver;
+	private ExecutorService executorService;
+	private int batchSize = 500;
+	private RateLimiter rateLimiter;
+	private File checkpointFile;
+	private Properties checkpoints = new Properties();
+	
+	public ShardRebalancer(ClusterDataDaoImpl<T> dao, MigratingShardResolver resolver, ExecutorService executorService) {
+		this.dao = dao;
+		this.resolver = resolver;
+		this.executorService = executorService;
+	}
+	
+	public void run() throws IOException {
+		copy();
+		cutover();
+		cleanup();
+	}
+	
+	public void copy() throws IOException {
+		loadCheckpoints();
+		forEachOldShard(new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				copyShard(shardId);
+			}
+		});
+	}
+	
+	/**
+	 * Switches to the new layout. The dao's id filters are dropped, since they
+	 * may have been built for fewer shards or before the copy; rebuild them
+	 * once the migration is done.
+	 */
+	public void cutover() {
+		resolver.setPhase(MigratingShardResolver.Phase.CUTOVER);
+		dao.dropIdFilters();
+	}
+	
+	public void cleanup() throws IOException {
+		loadCheckpoints();
+		forEachOldShard(new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				cleanupShard(shardId);
+			}
+		});
+		resolver.setPhase(MigratingShardResolver.Phase.DONE);
+	}
+	
+	protected void copyShard(int shardId) {
+		ORMClass<T> orm = dao.getOrmClass();
+		ShardResolver newResolver = resolver.getNewResolver();
+		NamedParameterJdbcTemplate source = dao.getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+		String last = getCheckpoint("copy", shardId);
+		while(true) {
+			throttle();
+			List<T> rows = orm.queryBySql(source, pageSql("*", last), pageParams(last));
+			Map<Integer, List<T>> moving = new HashMap<Integer, List<T>>();
+			for(T row : rows) {
+				int target = newResolver.getShardId(orm.getObjectId(row));
+				if(target == shardId)
+					continue;
+				List<T> list = moving.get(target);
+				if(list == null) {
+					list = new ArrayList<T>();
+					moving.put(target, list);
+				}
+				list.add(row);
+			}
+			for(Entry<Integer, List<T>> entry : moving.entrySet()) {
+				insertMissing(entry.getKey(), entry.getValue());
+			}
+			if(rows.size() > 0) {
+				last = orm.getObjectId(rows.get(rows.size() - 1));
+				setCheckpoint("copy", shardId, last);
+			}
+			if(rows.size() < batchSize)
+				break;
+		}
+	}
+	
+	protected void insertMissing(int shardId, List<T> rows) {
+		ORMClass<T> orm = dao.getOrmClass();
+		List<String> ids = new ArrayList<String>(rows.size());
+		for(T row : rows) {
+			ids.add(orm.getObjectId(row));
+		}
+		NamedParameterJdbcTemplate target = dao.getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+		String sql = "select id from " + orm.getTableName() + " where id in (:ids)";
+		Set<String> existing = new HashSet<String>(target.query(sql, Collections.singletonMap("ids", orm.toIdParams(ids)), orm.getIdRowMapper()));
+		List<T> missing = new ArrayList<T>();
+		for(T row : rows) {
+			if(!existing.contains(orm.getObjectId(row)))
+				missing.add(row);
+		}
+		orm.batchInsert(target, missing, true);
+		for(T row : missing) {
+			dao.rememberId(shardId, orm.getObjectId(row));
+		}
+		
+		// a delete that ran after this batch was read must not be undone
+		List<String> deleted = new ArrayList<String>();
+		for(T row : missing) {
+			String id = orm.getObjectId(row);
+			if(resolver.isDeleted(id))
+				deleted.add(id);
+		}
+		if(deleted.size() > 0)
+			dao.removeInShard(shardId, deleted);
+	}
+	
+	protected void cleanupShard(int shardId) {
+		ORMClass<T> orm = dao.getOrmClass();
+		ShardResolver newResolver = resolver.getNewResolver();
+		NamedParameterJdbcTemplate source = dao.getShardedDataSource().getNamedParameterJdbcTemplate(shardId);
+		String last = getCheckpoint("cleanup", shardId);
+		while(true) {
+			throttle();
+			List<String> ids = source.query(pageSql("id", last), pageParams(last), orm.getIdRowMapper());
+			List<String> moved = new ArrayList<String>();
+			for(String id : ids) {
+				if(newResolver.getShardId(id) != shardId)
+					moved.add(id);
+			}
+			if(moved.size() > 0)
+				dao.removeInShard(shardId, moved);
+			if(ids.size() > 0) {
+				last = ids.get(ids.size() - 1);
+				setCheckpoint("cleanup", shardId, last);
+			}
+			if(ids.size() < batchSize)
+				break;
+		}
+	}
+	
+	/**
+	 * Next page of rows in id order after last, an id in string form or "" to
+	 * start from the first row.
+	 */
+	private String pageSql(String columns, String last) {
+		String sql = "select " + columns + " from " + dao.getOrmClass().getTableName();
+		if(last.length() > 0)
+			sql += " where id > :last";
+		return sql + " order by id limit " + batchSize;
+	}
+	
+	private Map<String, Object> pageParams(String last) {
+		if(last.length() == 0)
+			return Collections.emptyMap();
+		return Collections.singletonMap("last", dao.getOrmClass().toIdParam(last));
+	}
+	
+	private void forEachOldShard(ShardRunnable runnable) {
+		MultiTask mt = new MultiTask();
+		for(int i=0; i<resolver.getOldResolver().size(); i++) {
+			ShardTask shardTask = new ShardTask(i, runnable);
+			mt.addTask(shardTask);
+		}
+		mt.execute(executorService);
+	}
+	
+	private void throttle() {
+		if(rateLimiter == null)
+			return;
+		while(!rateLimiter.request()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	private synchronized String getCheckpoint(String step, int shardId) {
+		return checkpoints.getProperty(step + "." + shardId, "");
+	}
+	
+	private synchronized void setCheckpoint(String step, int shardId, String lastId) {
+		checkpoints.setProperty(step + "." + shardId, lastId);
+		if(checkpointFile == null)
+			return;
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				checkpoints.store(out, "shard rebalance checkpoints");
+			} finally {
+				out.close();
+			}
+			if(!tmp.renameTo(checkpointFile)) {
+				checkpointFile.delete();
+				if(!tmp.renameTo(checkpointFile))
+					throw new IOException("cannot write " + checkpointFile);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private synchronized void loadCheckpoints() throws IOException {
+		if(checkpointFile == null || !checkpointFile.exists())
+			return;
+		InputStream in = new FileInputStream(checkpointFile);
+		try {
+			checkpoints.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if(batchSize <= 0)
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+		this.batchSize = batchSize;
+	}
+	
+	public void setMaxBatchesPerSecond(int batches) {
+		this.rateLimiter = batches > 0 ? new RateLimiter(batches, 1000) : null;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public void setCheckpointFile(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+}
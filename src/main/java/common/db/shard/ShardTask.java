@@ -1,16 +1,96 @@
 package common.db.shard;
 
-public class ShardTask implements Runnable {
+import common.util.MultiTask;
+
+/**
+ * Runs a ShardRunnable under the shard's bulkhead. submitting(), called by
+ * MultiTask before the task is handed to the executor, takes a free permit
+ * without waiting, so a saturated shard never holds up the submission of
+ * tasks for other shards. A task that got none waits for one when it runs,
+ * within the bulkhead's maxWaitMillis and maxQueued, or is shed. An optional
+ * task without a permit is skipped instead, see setOptional.
+ */
+public class ShardTask implements Runnable, MultiTask.SubmitAware {
 	private int shardId;
 	private ShardRunnable runnable;
+	private ShardBulkhead bulkhead;
+	private ShardMetrics metrics = NoOpShardMetrics.INSTANCE;
+	private String operation;
+	private volatile long submitted;
+	private volatile boolean acquired;
+	private boolean optional;
 	
 	public ShardTask(int shard, ShardRunnable runnable) {
 		this.shardId = shard;
 		this.runnable = runnable;
 	}
 
+	public ShardTask(int shard, ShardRunnable runnable, ShardBulkhead bulkhead) {
+		this(shard, runnable);
+		this.bulkhead = bulkhead;
+	}
+
+	/**
+	 * Reports the time between submitting the task and running it as queue
+	 * wait, and the run itself as latency of the operation on the shard.
+	 */
+	public ShardTask(int shard, ShardRunnable runnable, ShardBulkhead bulkhead, ShardMetrics metrics, String operation) {
+		this(shard, runnable, bulkhead);
+		this.metrics = metrics;
+		this.operation = operation;
+	}
+
+	/**
+	 * An optional task is extra parallelism for work other tasks of the same
+	 * call also take from, such as the IN list lanes of one shard. If its
+	 * shard has no free permit it does nothing rather than wait or be shed.
+	 */
+	public void setOptional(boolean optional) {
+		this.optional = optional;
+	}
+
+	@Override
+	public void submitting() {
+		if(bulkhead != null && !acquired)
+			acquired = bulkhead.tryAcquire(shardId);
+		submitted = System.nanoTime();
+	}
+	
+	@Override
+	public void submitFailed() {
+		if(acquired) {
+			acquired = false;
+			bulkhead.cancel(shardId);
+		}
+	}
+
 	@Override
 	public void run() {
-		runnable.run(shardId);
+		long start = System.nanoTime();
+		if(operation != null && submitted != 0)
+			metrics.recordQueueWait(operation, shardId, start - submitted);
+		try {
+			if(bulkhead == null) {
+				runnable.run(shardId);
+				return;
+			}
+			if(!acquired && !bulkhead.tryAcquire(shardId)) {
+				if(optional)
+					return;
+				bulkhead.acquire(shardId);
+			}
+			acquired = false;
+			long began = System.nanoTime();
+			boolean failed = true;
+			try {
+				runnable.run(shardId);
+				failed = false;
+			} finally {
+				bulkhead.release(shardId, operation, System.nanoTime() - began, failed);
+			}
+		} finally {
+			if(operation != null)
+				metrics.recordLatency(operation, shardId, System.nanoTime() - start);
+		}
 	}
 }
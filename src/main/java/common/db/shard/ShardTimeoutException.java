@@ -0,0 +1,18 @@
+package common.db.shard;
+
+import java.util.List;
+
+public class ShardTimeoutException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	
+	private List<Integer> missingShards;
+	
+	public ShardTimeoutException(List<Integer> missingShards) {
+		super("shards " + missingShards + " did not answer before the deadline");
+		this.missingShards = missingShards;
+	}
+
+	public List<Integer> getMissingShards() {
+		return missingShards;
+	}
+}
@@ -10,4 +10,20 @@ public interface ShardedDataSource {
 	DataSource getDataSource(int shard);
 	NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(int shardId);
 	JdbcTemplate getJdbcTemplate(int shardId);
+	
+	default int getReplicaCount(int shardId) {
+		return 0;
+	}
+	
+	default DataSource getReadDataSource(int shardId) {
+		return getDataSource(shardId);
+	}
+	
+	default NamedParameterJdbcTemplate getReadNamedParameterJdbcTemplate(int shardId) {
+		return getNamedParameterJdbcTemplate(shardId);
+	}
+	
+	default JdbcTemplate getReadJdbcTemplate(int shardId) {
+		return getJdbcTemplate(shardId);
+	}
 }
@@ -1,7 +1,9 @@
 package common.db.shard;
 
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -9,40 +11,179 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
 public class ShardedDataSourceImpl implements ShardedDataSource {
-	private Map<Integer, JdbcTemplate> jdbcTemplates;
-	private Map<Integer, NamedParameterJdbcTemplate> namedJdbcTemplates;
-	private List<DataSource> dataSources;
+	private volatile Shards shards = new Shards(Collections.<DataSource>emptyList(), null, null);
+	private List<DataSource> dataSources = Collections.emptyList();
+	private List<List<DataSource>> replicaDataSources;
+	private volatile ReadRoutingPolicy readRoutingPolicy = ReadRoutingPolicy.ROUND_ROBIN;
 
 	@Override
 	public int getTotalShards() {
-		return dataSources.size();
+		return shards.dataSources.length;
 	}
 
 	@Override
 	public DataSource getDataSource(int shard) {
-		return dataSources.get(shard);
+		return shards.dataSources[shard];
 	}
 
-	public synchronized NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(int shardId) {
-		NamedParameterJdbcTemplate template = namedJdbcTemplates.get(shardId);
-		if(template == null) {
-			template = new NamedParameterJdbcTemplate(getDataSource(shardId));
-			namedJdbcTemplates.put(shardId, template);
-		}
-		return template;
+	public NamedParameterJdbcTemplate getNamedParameterJdbcTemplate(int shardId) {
+		return shards.namedJdbcTemplates[shardId];
+	}
+
+	public JdbcTemplate getJdbcTemplate(int shardId) {
+		return shards.jdbcTemplates[shardId];
+	}
+
+	@Override
+	public int getReplicaCount(int shardId) {
+		return shards.replicas[shardId].length;
 	}
-	
-	public synchronized JdbcTemplate getJdbcTemplate(int shardId) {
-		JdbcTemplate template = jdbcTemplates.get(shardId);
-		if(template == null) {
-			template = new JdbcTemplate(getDataSource(shardId));
-			jdbcTemplates.put(shardId, template);
+
+	@Override
+	public DataSource getReadDataSource(int shardId) {
+		Replica replica = chooseReplica(shards, shardId);
+		return replica == null ? getDataSource(shardId) : replica.dataSource;
+	}
+
+	@Override
+	public NamedParameterJdbcTemplate getReadNamedParameterJdbcTemplate(int shardId) {
+		Shards current = shards;
+		Replica replica = chooseReplica(current, shardId);
+		return replica == null ? current.namedJdbcTemplates[shardId] : replica.namedJdbcTemplate;
+	}
+
+	@Override
+	public JdbcTemplate getReadJdbcTemplate(int shardId) {
+		Shards current = shards;
+		Replica replica = chooseReplica(current, shardId);
+		return replica == null ? current.jdbcTemplates[shardId] : replica.jdbcTemplate;
+	}
+
+	private Replica chooseReplica(Shards current, int shardId) {
+		Replica[] replicas = current.replicas[shardId];
+		if(replicas.length == 0)
+			return null;
+		if(replicas.length == 1)
+			return replicas[0];
+		switch (readRoutingPolicy) {
+		case LEAST_OUTSTANDING: {
+			Replica best = replicas[0];
+			for(int i=1; i<replicas.length; i++) {
+				if(replicas[i].dataSource.getOutstanding() < best.dataSource.getOutstanding())
+					best = replicas[i];
+			}
+			return best;
+		}
+		case LATENCY_WEIGHTED: {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Replica a = replicas[random.nextInt(replicas.length)];
+			Replica b = replicas[random.nextInt(replicas.length)];
+			return a.cost() <= b.cost() ? a : b;
+		}
+		default:
+			int next = current.roundRobin[shardId].getAndIncrement() & Integer.MAX_VALUE;
+			return replicas[next % replicas.length];
 		}
-		return template;
 	}
 
-	public void setDataSources(List<DataSource> dataSources) {
+	/**
+	 * Publishes a new shard map. Templates are built up front and swapped in as
+	 * one immutable snapshot, so lookups never lock and callers in flight keep
+	 * the snapshot they started with. Templates of data sources present in the
+	 * previous map are reused.
+	 */
+	public synchronized void setDataSources(List<DataSource> dataSources) {
 		this.dataSources = dataSources;
+		shards = new Shards(dataSources, replicaDataSources, shards);
+	}
+
+	/**
+	 * Replica data sources per shard, in shard order. Reads through the read
+	 * templates are spread over them by the read routing policy; a shard with
+	 * no replicas reads from its primary.
+	 */
+	public synchronized void setReplicaDataSources(List<List<DataSource>> replicaDataSources) {
+		this.replicaDataSources = replicaDataSources;
+		shards = new Shards(dataSources, replicaDataSources, shards);
+	}
+
+	public ReadRoutingPolicy getReadRoutingPolicy() {
+		return readRoutingPolicy;
+	}
+
+	public void setReadRoutingPolicy(ReadRoutingPolicy readRoutingPolicy) {
+		this.readRoutingPolicy = readRoutingPolicy;
 	}
 
+	private static class Replica {
+		private final TrackedDataSource dataSource;
+		private final JdbcTemplate jdbcTemplate;
+		private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+		public Replica(TrackedDataSource dataSource) {
+			this.dataSource = dataSource;
+			this.jdbcTemplate = new JdbcTemplate(dataSource);
+			this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+		}
+
+		private double cost() {
+			return (dataSource.getAverageMillis() + 1) * (dataSource.getOutstanding() + 1);
+		}
+	}
+
+	private static class Shards {
+		private final DataSource[] dataSources;
+		private final JdbcTemplate[] jdbcTemplates;
+		private final NamedParameterJdbcTemplate[] namedJdbcTemplates;
+		private final Replica[][] replicas;
+		private final AtomicInteger[] roundRobin;
+
+		public Shards(List<DataSource> list, List<List<DataSource>> replicaList, Shards previous) {
+			dataSources = list.toArray(new DataSource[list.size()]);
+			jdbcTemplates = new JdbcTemplate[dataSources.length];
+			namedJdbcTemplates = new NamedParameterJdbcTemplate[dataSources.length];
+			replicas = new Replica[dataSources.length][];
+			roundRobin = new AtomicInteger[dataSources.length];
+			for(int i=0; i<dataSources.length; i++) {
+				int reuse = previous == null ? -1 : previous.indexOf(dataSources[i]);
+				if(reuse >= 0) {
+					jdbcTemplates[i] = previous.jdbcTemplates[reuse];
+					namedJdbcTemplates[i] = previous.namedJdbcTemplates[reuse];
+				}
+				else {
+					jdbcTemplates[i] = new JdbcTemplate(dataSources[i]);
+					namedJdbcTemplates[i] = new NamedParameterJdbcTemplate(jdbcTemplates[i]);
+				}
+
+				List<DataSource> shardReplicas = replicaList == null || i >= replicaList.size() || replicaList.get(i) == null
+						? Collections.<DataSource>emptyList() : replicaList.get(i);
+				replicas[i] = new Replica[shardReplicas.size()];
+				for(int j=0; j<replicas[i].length; j++) {
+					Replica existing = previous == null ? null : previous.findReplica(shardReplicas.get(j));
+					replicas[i][j] = existing != null ? existing : new Replica(new TrackedDataSource(shardReplicas.get(j)));
+				}
+				roundRobin[i] = new AtomicInteger();
+			}
+		}
+
+		private int indexOf(DataSource dataSource) {
+			for(int i=0; i<dataSources.length; i++) {
+				if(dataSources[i] == dataSource)
+					return i;
+			}
+			return -1;
+		}
+
+		private Replica findReplica(DataSource dataSource) {
+			for(Replica[] shardReplicas : replicas) {
+				if(shardReplicas == null)
+					continue;
+				for(Replica replica : shardReplicas) {
+					if(replica.dataSource.getTarget() == dataSource)
+						return replica;
+				}
+			}
+			return null;
+		}
+	}
 }
@@ -0,0 +1,111 @@
+package common.db.shard;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * DataSource wrapper counting the connections currently borrowed and keeping
+ * an exponentially weighted average of how long they are held, which is what
+ * a jdbc template call costs end to end.
+ */
+public class TrackedDataSource implements DataSource {
+	private DataSource target;
+	private AtomicInteger outstanding = new AtomicInteger();
+	private volatile double averageMillis;
+	
+	public TrackedDataSource(DataSource target) {
+		this.target = target;
+	}
+	
+	public DataSource getTarget() {
+		return target;
+	}
+	
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+	
+	public double getAverageMillis() {
+		return averageMillis;
+	}
+	
+	@Override
+	public Connection getConnection() throws SQLException {
+		return track(target.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return track(target.getConnection(username, password));
+	}
+	
+	private Connection track(final Connection connection) {
+		outstanding.incrementAndGet();
+		final long start = System.nanoTime();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+			private boolean closed;
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if("close".equals(method.getName()) && !closed) {
+					closed = true;
+					outstanding.decrementAndGet();
+					double millis = (System.nanoTime() - start) / 1000000.0;
+					averageMillis = averageMillis == 0 ? millis : averageMillis * 0.9 + millis * 0.1;
+				}
+				try {
+					return method.invoke(connection, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return target.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		target.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		target.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return target.getLoginTimeout();
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return target.getParentLogger();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this))
+			return iface.cast(this);
+		return target.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || target.isWrapperFor(iface);
+	}
+}
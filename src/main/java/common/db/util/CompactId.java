@@ -0,0 +1,108 @@
+package common.db.util;
+
+import java.util.UUID;
+
+/**
+ * 16 byte id held as two longs. The top 12 bits carry the shard number and the
+ * rest comes from a random UUID, whose version and variant bits are fixed, so
+ * 110 bits are random. The id fits a BINARY(16) column while its 32 char hex
+ * form still starts with the shard, like GUID strings do.
+ */
+public final class CompactId implements Comparable<CompactId> {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private final long msb;
+	private final long lsb;
+	
+	public CompactId(long msb, long lsb) {
+		this.msb = msb;
+		this.lsb = lsb;
+	}
+	
+	public static CompactId random(short shardId) {
+		UUID uuid = UUID.randomUUID();
+		long msb = ((long) (shardId & 0xfff) << 52) | (uuid.getMostSignificantBits() >>> 12);
+		return new CompactId(msb, uuid.getLeastSignificantBits());
+	}
+	
+	public static CompactId sameShardRandom(CompactId id) {
+		return random((short) id.getShardId());
+	}
+	
+	public int getShardId() {
+		return (int) (msb >>> 52);
+	}
+	
+	public long getMostSignificantBits() {
+		return msb;
+	}
+	
+	public long getLeastSignificantBits() {
+		return lsb;
+	}
+	
+	public byte[] toBytes() {
+		byte[] bytes = new byte[16];
+		for(int i=0; i<8; i++) {
+			bytes[i] = (byte) (msb >>> (56 - 8 * i));
+			bytes[i+8] = (byte) (lsb >>> (56 - 8 * i));
+		}
+		return bytes;
+	}
+	
+	public static CompactId fromBytes(byte[] bytes) {
+		if(bytes == null)
+			return null;
+		if(bytes.length != 16)
+			throw new IllegalArgumentException("compact id needs 16 bytes, got " + bytes.length);
+		long msb = 0;
+		long lsb = 0;
+		for(int i=0; i<8; i++) {
+			msb = (msb << 8) | (bytes[i] & 0xff);
+			lsb = (lsb << 8) | (bytes[i+8] & 0xff);
+		}
+		return new CompactId(msb, lsb);
+	}
+	
+	public static CompactId parse(String hex) {
+		if(hex.length() != 32)
+			throw new IllegalArgumentException("compact id needs 32 hex chars: " + hex);
+		long msb = 0;
+		long lsb = 0;
+		for(int i=0; i<16; i++) {
+			msb = (msb << 4) | GUID.hexValue(hex.charAt(i));
+			lsb = (lsb << 4) | GUID.hexValue(hex.charAt(i+16));
+		}
+		return new CompactId(msb, lsb);
+	}
+	
+	@Override
+	public String toString() {
+		char[] chars = new char[32];
+		for(int i=0; i<16; i++) {
+			chars[i] = HEX[(int) (msb >>> (60 - 4 * i)) & 0xf];
+			chars[i+16] = HEX[(int) (lsb >>> (60 - 4 * i)) & 0xf];
+		}
+		return new String(chars);
+	}
+	
+	@Override
+	public int hashCode() {
+		long h = msb ^ lsb;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof CompactId))
+			return false;
+		CompactId other = (CompactId) obj;
+		return msb == other.msb && lsb == other.lsb;
+	}
+	
+	@Override
+	public int compareTo(CompactId other) {
+		int result = Long.compareUnsigned(msb, other.msb);
+		return result != 0 ? result : Long.compareUnsigned(lsb, other.lsb);
+	}
+}
@@ -0,0 +1,30 @@
+package common.db.util;
+
+import java.sql.ResultSet;
+import java.util.Map;
+
+/**
+ * Compile time generated mapping of one entity, see OrmEntity. Fields are
+ * addressed by their index in getColumns().
+ */
+public interface EntityMapper<T> {
+	String getTableName();
+	String[] getColumns();
+	String getInsertSql(boolean ignore);
+	String getReplaceSql();
+	String getUpdateSql();
+	T newInstance();
+	
+	/**
+	 * @return index of the field filled by a result column with this label, or
+	 * -1 when no field matches.
+	 */
+	int getFieldIndex(String label);
+	void read(T obj, int fieldIndex, ResultSet rs, int column) throws Exception;
+	
+	/**
+	 * Puts every column's value in the form ORMClass binds it as a parameter.
+	 */
+	void bind(T obj, Map<String, Object> values);
+	Object getId(T obj);
+}
@@ -0,0 +1,7 @@
+package common.db.util;
+
+public enum ExportFormat {
+	TSV,
+	CSV,
+	NDJSON
+}
@@ -0,0 +1,278 @@
+package common.db.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.Type;
+
+/**
+ * Getter and setter of one field, made accessible once so later calls skip
+ * the access check. getLong, getInt, getDouble and their setters read and
+ * write primitive fields through Field.getLong/setLong and friends, without
+ * boxing.
+ * <p>
+ * of() returns a subclass spun for the field instead, whose methods are a
+ * plain getfield or putfield the JIT inlines like hand written code, when
+ * the field is public, not final, and declared by a public class. The
+ * primitive getters and setters of the field's own type never box.
+ * LambdaMetafactory cannot target fields, so the class is written with the
+ * ASM copy bundled in spring-core and defined in a loader of its own.
+ */
+public class FieldAccessor {
+    private static final AtomicInteger spun = new AtomicInteger();
+
+    private final Field field;
+    private final Class<?> type;
+    private final boolean settable;
+
+    public FieldAccessor(Field field) {
+        this.field = field;
+        this.type = field.getType();
+        field.setAccessible(true);
+        int modifiers = field.getModifiers();
+        this.settable = !(Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers));
+    }
+
+    public static FieldAccessor of(Field field) {
+        if(!isSpinnable(field))
+            return new FieldAccessor(field);
+        try {
+            String name = FieldAccessor.class.getName() + "$" + field.getName() + "$" + spun.incrementAndGet();
+            AccessorLoader loader = new AccessorLoader(field.getDeclaringClass().getClassLoader());
+            Class<?> cls = loader.define(name, spin(name.replace('.', '/'), field));
+            return (FieldAccessor) cls.getConstructor(Field.class).newInstance(field);
+        }
+        catch (Exception e) {
+            return new FieldAccessor(field);
+        }
+    }
+
+    private static boolean isSpinnable(Field field) {
+        int modifiers = field.getModifiers();
+        if(!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers))
+            return false;
+        Class<?> type = field.getType();
+        while(type.isArray()) {
+            type = type.getComponentType();
+        }
+        return Modifier.isPublic(field.getDeclaringClass().getModifiers()) && Modifier.isPublic(type.getModifiers())
+                && field.getDeclaringClass().getClassLoader() != null;
+    }
+
+    private static byte[] spin(String name, Field field) {
+        String owner = Type.getInternalName(field.getDeclaringClass());
+        Class<?> type = field.getType();
+        String desc = Type.getDescriptor(type);
+        String superName = Type.getInternalName(FieldAccessor.class);
+        String target = "(Ljava/lang/Object;)";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null, superName, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/lang/reflect/Field;)V", null, null);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "(Ljava/lang/reflect/Field;)V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "get", target + "Ljava/lang/Object;", null, null);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, field.getName(), desc);
+        if(type.isPrimitive()) {
+            Type boxed = Type.getType(box(type));
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, boxed.getInternalName(), "valueOf", "(" + desc + ")" + boxed.getDescriptor(), false);
+        }
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "set", "(Ljava/lang/Object;Ljava/lang/Object;)V", null, null);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        if(type == boolean.class || type == char.class) {
+            String boxed = Type.getInternalName(box(type));
+            mv.visitTypeInsn(Opcodes.CHECKCAST, boxed);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, boxed, type.getName() + "Value", "()" + desc, false);
+        }
+        else if(type.isPrimitive()) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Number");
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Number", type.getName() + "Value", "()" + desc, false);
+        }
+        else {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(type));
+        }
+        mv.visitFieldInsn(Opcodes.PUTFIELD, owner, field.getName(), desc);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if(type == long.class || type == int.class || type == double.class) {
+            String suffix = Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+            Type primitive = Type.getType(type);
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "get" + suffix, target + desc, null, null);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+            mv.visitFieldInsn(Opcodes.GETFIELD, owner, field.getName(), desc);
+            mv.visitInsn(primitive.getOpcode(Opcodes.IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "set" + suffix, "(Ljava/lang/Object;" + desc + ")V", null, null);
+            mv.visitVarInsn(Opcodes.ALOAD, 1);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+            mv.visitVarInsn(primitive.getOpcode(Opcodes.ILOAD), 2);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, owner, field.getName(), desc);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if(type == long.class)
+            return Long.class;
+        if(type == int.class)
+            return Integer.class;
+        if(type == double.class)
+            return Double.class;
+        if(type == float.class)
+            return Float.class;
+        if(type == boolean.class)
+            return Boolean.class;
+        if(type == char.class)
+            return Character.class;
+        if(type == short.class)
+            return Short.class;
+        return Byte.class;
+    }
+
+    /**
+     * Sees the entity's classes through its parent and FieldAccessor, which
+     * the entity's loader may not know, directly.
+     */
+    private static class AccessorLoader extends ClassLoader {
+        public AccessorLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(name.equals(FieldAccessor.class.getName()))
+                return FieldAccessor.class;
+            return super.loadClass(name, resolve);
+        }
+
+        public Class<?> define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Object get(Object target) {
+        try {
+            return field.get(target);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void set(Object target, Object value) {
+        if(!settable)
+            throw new RuntimeException("field " + field.getName() + " is static final");
+        try {
+            field.set(target, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getLong(Object target) {
+        if(type != long.class)
+            return ((Number) get(target)).longValue();
+        try {
+            return field.getLong(target);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setLong(Object target, long value) {
+        if(type != long.class || !settable) {
+            set(target, value);
+            return;
+        }
+        try {
+            field.setLong(target, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getInt(Object target) {
+        if(type != int.class)
+            return ((Number) get(target)).intValue();
+        try {
+            return field.getInt(target);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setInt(Object target, int value) {
+        if(type != int.class || !settable) {
+            set(target, value);
+            return;
+        }
+        try {
+            field.setInt(target, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public double getDouble(Object target) {
+        if(type != double.class)
+            return ((Number) get(target)).doubleValue();
+        try {
+            return field.getDouble(target);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setDouble(Object target, double value) {
+        if(type != double.class || !settable) {
+            set(target, value);
+            return;
+        }
+        try {
+            field.setDouble(target, value);
+        }
+        catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,21 +1,170 @@
 package common.db.util;
 
+import java.security.SecureRandom;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class GUID {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+    private static volatile boolean secure = true;
+    private static final ThreadLocal<long[]> CLOCK = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
     public static String getRandomStringUuid(short shardId) {
-        String fmt = String.format("%03X", shardId);
-        return fmt + UUID.randomUUID().toString();
+        if(secure) {
+            UUID uuid = UUID.randomUUID();
+            return format(shardId, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return format(shardId, randomMsb(random.nextLong()), randomLsb(random.nextLong()));
+    }
+
+    /**
+     * n ids of getRandomStringUuid's format. In secure mode the random bytes of
+     * all of them are drawn from the shared SecureRandom in a single call.
+     */
+    public static String[] getRandomStringUuids(short shardId, int n) {
+        String[] ids = new String[n];
+        if(secure) {
+            byte[] bytes = new byte[16 * n];
+            SecureRandomHolder.RANDOM.nextBytes(bytes);
+            for(int i=0; i<n; i++) {
+                ids[i] = format(shardId, randomMsb(readLong(bytes, 16 * i)), randomLsb(readLong(bytes, 16 * i + 8)));
+            }
+        }
+        else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(int i=0; i<n; i++) {
+                ids[i] = format(shardId, randomMsb(random.nextLong()), randomLsb(random.nextLong()));
+            }
+        }
+        return ids;
+    }
+
+    public static boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * By default random ids come from SecureRandom like UUID.randomUUID. With
+     * secure off they come from per thread ThreadLocalRandom state, which has
+     * no shared lock but is predictable, so only turn it off where ids need
+     * not be unguessable.
+     */
+    public static void setSecure(boolean secure) {
+        GUID.secure = secure;
     }
     
     public static short extractShardId(String id) {
-        return Short.parseShort(id.substring(0,3), 16);
+        return (short) ((hexValue(id.charAt(0)) << 8) | (hexValue(id.charAt(1)) << 4) | hexValue(id.charAt(2)));
+    }
+    
+    static int hexValue(char c) {
+        if(c >= '0' && c <= '9')
+            return c - '0';
+        if(c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if(c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        throw new NumberFormatException("not a hex digit: " + c);
     }
     
     public static String sameShardRandomStringUuid(String guid) {
-        int shardId = extractShardId(guid);
-        String fmt = String.format("%03X", shardId);
-        return fmt + UUID.randomUUID().toString();
+        return getRandomStringUuid(extractShardId(guid));
+    }
+
+    /**
+     * Same format as getRandomStringUuid, but the uuid part is UUIDv7 style:
+     * 48 bits of unix millis, a 12 bit counter and 62 random bits. Ids made by
+     * one thread are strictly increasing, so inserts append at the right edge
+     * of the primary key index instead of splitting random pages.
+     */
+    public static String getTimeOrderedStringUuid(short shardId) {
+        UUID uuid = timeOrderedUuid();
+        return format(shardId, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public static String sameShardTimeOrderedStringUuid(String guid) {
+        return getTimeOrderedStringUuid(extractShardId(guid));
+    }
+
+    /**
+     * @return the creation millis of an id made by getTimeOrderedStringUuid.
+     */
+    public static long extractTimestamp(String id) {
+        return Long.parseLong(id.substring(3, 11) + id.substring(12, 16), 16);
+    }
+
+    static UUID timeOrderedUuid() {
+        long[] clock = CLOCK.get();
+        long now = System.currentTimeMillis();
+        if(now > clock[0]) {
+            clock[0] = now;
+            clock[1] = ThreadLocalRandom.current().nextInt(0x800);
+        }
+        else if(++clock[1] > 0xfff) {
+            // counter used up within this milli, or the clock went back: move on to the next milli
+            clock[0]++;
+            clock[1] = 0;
+        }
+        long msb = (clock[0] << 16) | 0x7000 | clock[1];
+        long lsb = (ThreadLocalRandom.current().nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+
+    private static long randomMsb(long bits) {
+        return (bits & ~0xf000L) | 0x4000L;
+    }
+
+    private static long randomLsb(long bits) {
+        return (bits & 0x3fffffffffffffffL) | 0x8000000000000000L;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for(int i=0; i<8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Shard prefix as "%03X" followed by the uuid's canonical string, written
+     * into one char array.
+     */
+    static String format(short shardId, long msb, long lsb) {
+        if(shardId < 0 || shardId > 0xfff)
+            return String.format("%03X", shardId) + new UUID(msb, lsb).toString();
+        char[] buf = new char[39];
+        buf[0] = HEX_UPPER[(shardId >> 8) & 0xf];
+        buf[1] = HEX_UPPER[(shardId >> 4) & 0xf];
+        buf[2] = HEX_UPPER[shardId & 0xf];
+        hex(buf, 3, msb >>> 32, 8);
+        buf[11] = '-';
+        hex(buf, 12, msb >>> 16, 4);
+        buf[16] = '-';
+        hex(buf, 17, msb, 4);
+        buf[21] = '-';
+        hex(buf, 22, lsb >>> 48, 4);
+        buf[26] = '-';
+        hex(buf, 27, lsb, 12);
+        return new String(buf);
+    }
+
+    private static void hex(char[] buf, int offset, long value, int digits) {
+        for(int i=offset+digits-1; i>=offset; i--) {
+            buf[i] = HEX[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    private static class SecureRandomHolder {
+        private static final SecureRandom RANDOM = new SecureRandom();
     }
 
     public static void main(String[] args) {
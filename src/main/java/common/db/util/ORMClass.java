@@ -1,20 +1,35 @@
 package common.db.util;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 
+import common.util.WeakIdentityMap;
 import common.util.reflection.FieldFoundCallback;
 import common.util.reflection.ReflectionUtil;
 
@@ -24,11 +39,26 @@ public class ORMClass<T> {
     
     private Class<T> cls;
     private Map<String, Field> fields;
+    private Map<String, FieldAccessor> accessors;
     private Map<String, Field> upper;
     private String columns;
+    private String[] columnNames;
     private String namedColumns;
     private String tableName;
     private Field idField;
+    private FieldAccessor idAccessor;
+    private final ConcurrentHashMap<String, ColumnPlan> columnPlans = new ConcurrentHashMap<String, ColumnPlan>();
+    private EntityMapper<T> mapper;
+    private final ConcurrentHashMap<ShapeKey, Statement> statements = new ConcurrentHashMap<ShapeKey, Statement>();
+    
+    /**
+     * Upper bound of cached statement shapes per class. Shapes past it are
+     * built on every call, which only happens for callers generating
+     * unbounded column sets.
+     */
+    private static final int MAX_STATEMENTS = 1024;
+    private static final String[] ID_COLUMNS = {"id"};
+    private volatile WeakIdentityMap<Object, Object[]> snapshots;
     
     public RowMapper<T> getStreamRow(RowMapped<T> mapped) {
     	return new BaseRowMapper(mapped);
@@ -36,7 +66,8 @@ public class ORMClass<T> {
     
     public class BaseRowMapper implements RowMapper<T> {
 
-        private String[] queryColumns = null;
+        private ColumnPlan plan;
+        private int[] mapperFields;
         private RowMapped mapped;
 
         public BaseRowMapper() {
@@ -48,25 +79,25 @@ public class ORMClass<T> {
          
         @Override
         public T mapRow(ResultSet rs, int rowNum) throws SQLException {
-            if(queryColumns == null) {
-                ResultSetMetaData metaData = rs.getMetaData();
-                queryColumns = new String[metaData.getColumnCount()];
-                for(int i=0; i < metaData.getColumnCount(); i++) {
-                    String label = metaData.getColumnLabel(i+1);
-                    queryColumns[i] = label;
-                }
-            }
+            if(mapper != null && mapperFields == null)
+                mapperFields = getMapperFields(rs.getMetaData());
+            else if(mapper == null && plan == null)
+                plan = getColumnPlan(rs.getMetaData());
             
             try {
-                T obj = cls.newInstance();
-                for(int i=0; i<queryColumns.length; i++) {
-                    String value = rs.getString(i+1);
-                    Field field = getField(queryColumns[i]);
-                    if(field == null)
-                        continue;
-                    Object fieldValue = ReflectionUtil.convert(value, field.getType());
-                    field.set(obj, fieldValue);
+                T obj;
+                if(mapper != null) {
+                    obj = mapper.newInstance();
+                    for(int i=0; i<mapperFields.length; i++) {
+                        if(mapperFields[i] >= 0)
+                            mapper.read(obj, mapperFields[i], rs, i+1);
+                    }
                 }
+                else {
+                    obj = cls.newInstance();
+                    plan.read(rs, obj);
+                }
+                track(obj);
                 if(mapped == null)
                 	return obj;
                 else {
@@ -80,10 +111,212 @@ public class ORMClass<T> {
         }
     }
     
+    private int[] getMapperFields(ResultSetMetaData metaData) throws SQLException {
+        int[] indexes = new int[metaData.getColumnCount()];
+        for(int i=0; i<indexes.length; i++) {
+            indexes[i] = mapper.getFieldIndex(metaData.getColumnLabel(i+1));
+        }
+        return indexes;
+    }
+
+    private ColumnPlan getColumnPlan(ResultSetMetaData metaData) throws SQLException {
+        StringBuilder key = new StringBuilder();
+        for(int i=1; i<=metaData.getColumnCount(); i++) {
+            key.append(metaData.getColumnLabel(i)).append(':').append(metaData.getColumnType(i)).append(',');
+        }
+        ColumnPlan plan = columnPlans.get(key.toString());
+        if(plan == null) {
+            plan = new ColumnPlan(metaData);
+            columnPlans.putIfAbsent(key.toString(), plan);
+        }
+        return plan;
+    }
+
+    private static final int CONVERT = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int BOXED_INT = 3;
+    private static final int LONG = 4;
+    private static final int BOXED_LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int BOXED_DOUBLE = 7;
+    private static final int FLOAT = 8;
+    private static final int BOXED_FLOAT = 9;
+    private static final int BIG_DECIMAL = 10;
+    private static final int DATE_MILLIS = 11;
+    private static final int DATE_TIMESTAMP = 12;
+    private static final int ENUM = 13;
+    private static final int COMPACT_ID = 14;
+
+    /**
+     * Result columns resolved once per column layout to the field they fill and
+     * a typed getter matching both the field and the column's SQL type, so rows
+     * are read without string round trips or field lookups. Combinations not
+     * covered keep the getString + ReflectionUtil.convert path.
+     */
+    private class ColumnPlan {
+        private final FieldAccessor[] targets;
+        private final int[] readers;
+        private final Object[][] enumConstants;
+
+        public ColumnPlan(ResultSetMetaData metaData) throws SQLException {
+            int count = metaData.getColumnCount();
+            targets = new FieldAccessor[count];
+            readers = new int[count];
+            enumConstants = new Object[count][];
+            for(int i=0; i<count; i++) {
+                Field field = getField(metaData.getColumnLabel(i+1));
+                if(field == null)
+                    continue;
+                targets[i] = accessors.get(field.getName());
+                readers[i] = reader(field.getType(), metaData.getColumnType(i+1));
+                if(readers[i] == ENUM)
+                    enumConstants[i] = field.getType().getEnumConstants();
+            }
+        }
+
+        private int reader(Class<?> type, int sqlType) {
+            boolean integral = sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER || sqlType == Types.BIGINT;
+            boolean decimal = sqlType == Types.DECIMAL || sqlType == Types.NUMERIC;
+            boolean floating = sqlType == Types.FLOAT || sqlType == Types.REAL || sqlType == Types.DOUBLE;
+            if(type == String.class)
+                return STRING;
+            if(type == CompactId.class)
+                return COMPACT_ID;
+            if(type.isEnum())
+                return ENUM;
+            if(integral) {
+                if(type == int.class)
+                    return INT;
+                if(type == Integer.class)
+                    return BOXED_INT;
+                if(type == long.class)
+                    return LONG;
+                if(type == Long.class)
+                    return BOXED_LONG;
+                if(type == Date.class)
+                    return DATE_MILLIS;
+            }
+            if(integral || decimal || floating) {
+                if(type == double.class)
+                    return DOUBLE;
+                if(type == Double.class)
+                    return BOXED_DOUBLE;
+                if(type == float.class)
+                    return FLOAT;
+                if(type == Float.class)
+                    return BOXED_FLOAT;
+            }
+            if((integral || decimal) && type == BigDecimal.class)
+                return BIG_DECIMAL;
+            if(type == Date.class && (sqlType == Types.TIMESTAMP || sqlType == Types.DATE || sqlType == Types.TIME))
+                return DATE_TIMESTAMP;
+            return CONVERT;
+        }
+
+        public void read(ResultSet rs, Object obj) throws Exception {
+            for(int i=0; i<targets.length; i++) {
+                FieldAccessor field = targets[i];
+                if(field == null)
+                    continue;
+                int column = i + 1;
+                switch (readers[i]) {
+                case STRING:
+                    field.set(obj, rs.getString(column));
+                    break;
+                case INT: {
+                    int value = rs.getInt(column);
+                    if(!rs.wasNull())
+                        field.setInt(obj, value);
+                    break;
+                }
+                case BOXED_INT: {
+                    int value = rs.getInt(column);
+                    field.set(obj, rs.wasNull() ? null : Integer.valueOf(value));
+                    break;
+                }
+                case LONG: {
+                    long value = rs.getLong(column);
+                    if(!rs.wasNull())
+                        field.setLong(obj, value);
+                    break;
+                }
+                case BOXED_LONG: {
+                    long value = rs.getLong(column);
+                    field.set(obj, rs.wasNull() ? null : Long.valueOf(value));
+                    break;
+                }
+                case DOUBLE: {
+                    double value = rs.getDouble(column);
+                    if(!rs.wasNull())
+                        field.setDouble(obj, value);
+                    break;
+                }
+                case BOXED_DOUBLE: {
+                    double value = rs.getDouble(column);
+                    field.set(obj, rs.wasNull() ? null : Double.valueOf(value));
+                    break;
+                }
+                case FLOAT: {
+                    float value = rs.getFloat(column);
+                    if(!rs.wasNull())
+                        field.set(obj, value);
+                    break;
+                }
+                case BOXED_FLOAT: {
+                    float value = rs.getFloat(column);
+                    field.set(obj, rs.wasNull() ? null : Float.valueOf(value));
+                    break;
+                }
+                case BIG_DECIMAL:
+                    field.set(obj, rs.getBigDecimal(column));
+                    break;
+                case DATE_MILLIS: {
+                    long value = rs.getLong(column);
+                    field.set(obj, rs.wasNull() || value == 0 ? null : new Date(value));
+                    break;
+                }
+                case DATE_TIMESTAMP: {
+                    Timestamp value = rs.getTimestamp(column);
+                    field.set(obj, value == null ? null : new Date(value.getTime()));
+                    break;
+                }
+                case ENUM:
+                    field.set(obj, toEnum(enumConstants[i], rs.getString(column), field));
+                    break;
+                case COMPACT_ID:
+                    field.set(obj, CompactId.fromBytes(rs.getBytes(column)));
+                    break;
+                default:
+                    field.set(obj, ReflectionUtil.convert(rs.getString(column), field.getType()));
+                }
+            }
+        }
+
+        private Object toEnum(Object[] constants, String value, FieldAccessor field) {
+            if(value == null)
+                return null;
+            for(Object constant : constants) {
+                if(constant.toString().equals(value))
+                    return constant;
+            }
+            throw new RuntimeException("Unhandled data type: " + field.getType());
+        }
+    }
+
     public String getColumns() {
     	return columns;
     }
     
+    /**
+     * @return the type of the field column is mapped to, or null when there
+     * is none.
+     */
+    public Class<?> getColumnType(String column) {
+        Field field = getField(column);
+        return field == null ? null : field.getType();
+    }
+    
     private Field getField(String name) {
         Field field = fields.get(name);
         if(field != null)
@@ -99,15 +332,22 @@ public class ORMClass<T> {
 
         fields = new HashMap<String, Field>();
         upper = new HashMap<String, Field>();
+        accessors = new HashMap<String, FieldAccessor>();
         try {
             ReflectionUtil.iterateFields(cls, null, new FieldFoundCallback() {
                 @Override
                 public void field(Object o, Field field) throws Exception {
+                    // like the generated mappers: no static or compiler made fields,
+                    // and a field hides a superclass field of the same name
+                    if(Modifier.isStatic(field.getModifiers()) || field.isSynthetic() || fields.containsKey(field.getName()))
+                        return;
                     field.setAccessible(true);
                     fields.put(field.getName(), field);
                     upper.put(field.getName().toUpperCase(), field);
+                    accessors.put(field.getName(), FieldAccessor.of(field));
                     if("id".equalsIgnoreCase(field.getName())) {
                     	idField = field;
+                    	idAccessor = accessors.get(field.getName());
                     }
                 }
             });
@@ -116,20 +356,48 @@ public class ORMClass<T> {
             throw new RuntimeException(e);
         }
         
+        OrmEntity entity = cls.getAnnotation(OrmEntity.class);
+        if(entity != null && entity.table().length() > 0)
+            tableName = entity.table();
+        mapper = loadMapper(cls);
+        
         StringBuilder sb = new StringBuilder();
         StringBuilder questionsMarks = new StringBuilder();
         StringBuilder namedColumns = new StringBuilder();
         questionsMarks.append("(");
         namedColumns.append("(");
-        for(String key : fields.keySet()) {
+        for(String key : mapper != null ? Arrays.asList(mapper.getColumns()) : fields.keySet()) {
             sb.append(key).append(",");
             questionsMarks.append("?,");
             namedColumns.append(":").append(key).append(",");
         }
         columns = sb.substring(0, sb.length()-1);
+        columnNames = columns.split(",");
         this.namedColumns = namedColumns.substring(0, namedColumns.length() - 1) + ")";
     }
     
+    /**
+     * The &lt;Entity&gt;_OrmMapper generated by common-web-apt for an OrmEntity,
+     * or null to map through reflection.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> EntityMapper<T> loadMapper(Class<T> cls) {
+        try {
+            Class<?> generated = Class.forName(cls.getName() + "_OrmMapper", true, cls.getClassLoader());
+            return (EntityMapper<T>) generated.getDeclaredConstructor().newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public EntityMapper<T> getMapper() {
+        return mapper;
+    }
+    
     public String getTableName() {
         return tableName == null ? cls.getSimpleName() : tableName;
     }
@@ -138,6 +406,10 @@ public class ORMClass<T> {
     	this.tableName = tableName;
     }
     
+    private boolean isGeneratedSql() {
+        return mapper != null && getTableName().equals(mapper.getTableName());
+    }
+    
     public String getInsertHeader(boolean ignore) {
         if(ignore && ignoreSupported)
             return "insert ignore into " + getTableName() + " ";
@@ -146,10 +418,14 @@ public class ORMClass<T> {
     }
     
     public String getNamedInsertStmt(boolean ignore) {
+        if(isGeneratedSql())
+            return mapper.getInsertSql(ignore && ignoreSupported);
         return getInsertHeader(ignore) + " (" + columns + ") values " + this.namedColumns; 
     }
 
     public String getNamedReplaceStmt() {
+    	if(isGeneratedSql())
+    		return replaceSupported ? mapper.getReplaceSql() : mapper.getInsertSql(false);
     	if(replaceSupported)
     		return "replace into " + getTableName() + " (" + columns + ") values " + this.namedColumns;
     	else
@@ -158,65 +434,126 @@ public class ORMClass<T> {
 
     public Map<String, Object> getValueMap(Object obj) {
         Map<String, Object> values = new HashMap<String, Object>();
-        for(Entry<String, Field> entry : fields.entrySet()) {
-            String column = entry.getKey();
-            Field field = entry.getValue();
-            Object value = null;
-            try {
-                value = field.get(obj);
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            if(field.getType().isEnum()) {
-                values.put(column, value == null ? value : value.toString());
-            }
-            else {
-                values.put(column, value);
-            }
+        if(mapper != null) {
+            mapper.bind(cls.cast(obj), values);
+            return values;
+        }
+        for(Entry<String, FieldAccessor> entry : accessors.entrySet()) {
+            FieldAccessor accessor = entry.getValue();
+            values.put(entry.getKey(), toParam(accessor.getField(), accessor.get(obj)));
         }
         
         return values;
     }
     
+    private Object toParam(Field field, Object value) {
+        if(value == null)
+            return null;
+        if(field.getType().isEnum())
+            return value.toString();
+        if(value instanceof CompactId)
+            return ((CompactId) value).toBytes();
+        return value;
+    }
+    
     public int insert(NamedParameterJdbcTemplate jc, Object obj, boolean ignore) {
         String sql = getNamedInsertStmt(ignore);
         return insertOrReplace(jc, sql, obj);
     }
     
     public int insertOrReplace(NamedParameterJdbcTemplate jc, String sql, Object obj) {
-        Map<String, Object> values = getValueMap(obj);
+        Map<String, Object> values = getInsertValueMap(obj, System.currentTimeMillis());
+        return jc.update(sql, values);
+    }
+    
+    public int[] batchInsertOrReplace(NamedParameterJdbcTemplate jc, String sql, List<?> objs) {
+        if(objs.size() == 0)
+            return new int[0];
         long now = System.currentTimeMillis();
-        if(values.containsKey("created")) {
-            values.put("created", now);
-            try {
-                fields.get("created").set(obj, now);
+        SqlParameterSource[] batch = new SqlParameterSource[objs.size()];
+        for(int i=0; i<batch.length; i++) {
+            batch[i] = new MapSqlParameterSource(getInsertValueMap(objs.get(i), now));
+        }
+        return jc.batchUpdate(sql, batch);
+    }
+    
+    public int[] batchInsert(NamedParameterJdbcTemplate jc, List<?> objs, boolean ignore) {
+        return batchInsertOrReplace(jc, getNamedInsertStmt(ignore), objs);
+    }
+    
+    public int[] batchReplace(NamedParameterJdbcTemplate jc, List<?> objs) {
+        return batchInsertOrReplace(jc, getNamedReplaceStmt(), objs);
+    }
+    
+    public String getNamedUpdateStmt() {
+        if(isGeneratedSql())
+            return mapper.getUpdateSql();
+        StringBuilder sql = new StringBuilder();
+        sql.append("update ").append(getTableName()).append(" set ");
+        boolean first = true;
+        for(String column : columnNames) {
+            if(first) {
+                first = false;
             }
-            catch (Exception e) {
-                throw new RuntimeException(e);
+            else {
+                sql.append(",");
             }
+            sql.append(column).append("=:").append(column);
+        }
+        sql.append(" where id=:id");
+        return sql.toString();
+    }
+    
+    public int[] batchUpdateEntity(NamedParameterJdbcTemplate jc, List<?> objs) {
+        if(objs.size() == 0)
+            return new int[0];
+        if(snapshots != null)
+            return batchUpdateDirty(jc, objs);
+        return batchUpdateAll(jc, objs);
+    }
+    
+    /**
+     * Writes every column whether dirty tracking is on or not, and leaves the
+     * entities' snapshots alone. For rows kept in a second place, such as the
+     * mirror shard of a migration, which may not match what was loaded.
+     */
+    public int[] batchUpdateAll(NamedParameterJdbcTemplate jc, List<?> objs) {
+        if(objs.size() == 0)
+            return new int[0];
+        long now = System.currentTimeMillis();
+        FieldAccessor updated = accessors.get("updated");
+        SqlParameterSource[] batch = new SqlParameterSource[objs.size()];
+        for(int i=0; i<batch.length; i++) {
+            Object obj = objs.get(i);
+            if(updated != null)
+                updated.set(obj, now);
+            batch[i] = new MapSqlParameterSource(getValueMap(obj));
+        }
+        return jc.batchUpdate(getNamedUpdateStmt(), batch);
+    }
+    
+    private Map<String, Object> getInsertValueMap(Object obj, long now) {
+        Map<String, Object> values = getValueMap(obj);
+        if(values.containsKey("created")) {
+            values.put("created", now);
+            accessors.get("created").set(obj, now);
         }
         if(values.containsKey("updated")) {
             values.put("updated", now);
-            try {
-                fields.get("updated").set(obj, now);
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            accessors.get("updated").set(obj, now);
         }
         Object id = values.get("id");
-        if(id == null) {
+        if(id == null && idField != null && idField.getType() == CompactId.class) {
+            CompactId compactId = CompactId.random((short) 0);
+            values.put("id", compactId.toBytes());
+            idAccessor.set(obj, compactId);
+        }
+        else if(id == null) {
             id = GUID.getRandomStringUuid((short) 0);
             values.put("id", id);
-            try {
-                ReflectionUtil.setField(obj, "id", id);
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            accessors.get("id").set(obj, id);
         }
-        return jc.update(sql, values);
+        return values;
     }
     
     public T getById(NamedParameterJdbcTemplate jc, String id) {
@@ -224,122 +561,260 @@ public class ORMClass<T> {
     }
     
     public T getById(NamedParameterJdbcTemplate jc, String id, String... columns) {
-        return getUniqueResult(jc, Collections.singletonMap("id", id), columns);
+        return getUniqueResult(jc, Collections.singletonMap("id", toIdParam(id)), columns);
     }
 
-    public T getUniqueResult(NamedParameterJdbcTemplate jc, Map<String, String> where, String... columns) {
+    public T getUniqueResult(NamedParameterJdbcTemplate jc, Map<String, ?> where, String... columns) {
         List<T> list = query(jc, where, columns);
         if(list.size() == 0) return null;
         if(list.size() > 1) throw new RuntimeException("found more than one record for " + where.toString());
         return list.get(0);
     }
 
-    public List<T> query(NamedParameterJdbcTemplate jc, Map<String, String> where, String... columns) {
-        StringBuilder sql = new StringBuilder();
-        sql.append("select ");
-        sql.append(SqlUtil.getStrColumns(columns));
-        sql.append(" from ").append(getTableName());
-        
-        if(where != null && where.size() > 0) {
-            sql.append(" where ");
-            boolean first = true;
-            for(String key : where.keySet()) {
-                if(first) {
-                    first = false;
-                }
-                else {
-                    sql.append(" AND ");
+    public List<T> query(NamedParameterJdbcTemplate jc, Map<String, ?> where, String... columns) {
+        ShapeKey key = new ShapeKey("select", columns, keys(where));
+        Statement statement = statements.get(key);
+        if(statement == null) {
+            String[] whereColumns = sortedKeys(where);
+            StringBuilder sql = new StringBuilder();
+            sql.append("select ");
+            sql.append(SqlUtil.getStrColumns(columns));
+            sql.append(" from ").append(getTableName());
+            
+            if(whereColumns.length > 0) {
+                sql.append(" where ");
+                boolean first = true;
+                for(String column : whereColumns) {
+                    if(first) {
+                        first = false;
+                    }
+                    else {
+                        sql.append(" AND ");
+                    }
+                    sql.append(column).append("=:").append(column);
                 }
-                sql.append(key).append("=:").append(key);
             }
+            statement = cacheStatement(key, new Statement(sql.toString(), null, null));
         }
         
-        List<T> result = jc.query(sql.toString(), where, new BaseRowMapper());
+        List<T> result = jc.query(statement.sql, where, new BaseRowMapper());
         return result;
     }
 
     public int update(NamedParameterJdbcTemplate jc, Object obj, String[] updateColumns, String[] whereColumns) {
         try {
-            StringBuilder sql = new StringBuilder();
-            sql.append("update ").append(getTableName()).append(" set ");
-            boolean first = true;
-            if(fields.containsKey("updated")) {
+            Statement statement = getUpdateStatement(updateColumns, whereColumns);
+            return jc.update(statement.sql, getUpdateValues(obj, updateColumns, whereColumns, System.currentTimeMillis()));
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private Statement getUpdateStatement(String[] updateColumns, String[] whereColumns) {
+        ShapeKey key = new ShapeKey("update", updateColumns, whereColumns);
+        Statement statement = statements.get(key);
+        if(statement != null)
+            return statement;
+        
+        boolean stamp = fields.containsKey("updated");
+        StringBuilder sql = new StringBuilder();
+        sql.append("update ").append(getTableName()).append(" set ");
+        boolean first = true;
+        if(stamp) {
+            first = false;
+            sql.append(" updated=:updated ");
+        }
+        for(String column : updateColumns) {
+            if(stamp && column.equals("updated"))
+                continue;
+            if(first) {
                 first = false;
-                long time = System.currentTimeMillis();
-                sql.append(" updated = ").append(time);
-                fields.get("updated").set(obj, time);
             }
-            Map values = new HashMap();
-            for(String column : updateColumns) {
+            else {
+                sql.append(",");
+            }
+            sql.append(column).append("=:").append(column).append(" ");
+        }
+        if(whereColumns != null && whereColumns.length>0) {
+            sql.append(" where ");
+            first = true;
+            for(String column : whereColumns) {
                 if(first) {
                     first = false;
                 }
                 else {
-                    sql.append(",");
+                    sql.append(" and ");
                 }
                 sql.append(column).append("=:").append(column).append(" ");
-                Field field = fields.get(column);
-                Object value = field.get(obj);
-                if(field.getType().isEnum()) {
-                    values.put(column, value == null ? value : value.toString());
-                }
-                else {
-                    values.put(column, value);
-                }
-            }
-            if(whereColumns != null && whereColumns.length>0) {
-                sql.append(" where ");
-                first = true;
-                for(String column : whereColumns) {
-                    if(first) {
-                        first = false;
-                    }
-                    else {
-                        sql.append(" and ");
-                    }
-                    sql.append(column).append("=:").append(column).append(" ");
-                    Field field = fields.get(column);
-                    Object value = field.get(obj);
-                    if(field.getType().isEnum()) {
-                        values.put(column, value == null ? value : value.toString());
-                    }
-                    else {
-                        values.put(column, value);
-                    }
-                }
             }
-            return jc.update(sql.toString(), values);
         }
-        catch (Exception e) {
-            throw new RuntimeException(e);
+        return cacheStatement(key, new Statement(sql.toString(), null, null));
+    }
+    
+    private Map<String, Object> getUpdateValues(Object obj, String[] updateColumns, String[] whereColumns, long time) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        FieldAccessor updated = accessors.get("updated");
+        if(updated != null) {
+            updated.set(obj, time);
+            values.put("updated", time);
+        }
+        for(String column : updateColumns) {
+            FieldAccessor accessor = accessors.get(column);
+            values.put(column, toParam(accessor.getField(), accessor.get(obj)));
+        }
+        if(whereColumns != null) {
+            for(String column : whereColumns) {
+                FieldAccessor accessor = accessors.get(column);
+                values.put(column, toParam(accessor.getField(), accessor.get(obj)));
+            }
         }
+        return values;
     }
 
+    /**
+     * With no columns given, updates the columns changed since the entity was
+     * loaded when dirty tracking is on, and does nothing, returning 0, when
+     * none changed. Entities that were not loaded by this ORMClass, or when
+     * tracking is off, get every column written.
+     */
     public int updateEntity(NamedParameterJdbcTemplate jc, Object obj, String[] updateColumns) {
-        if(updateColumns == null || updateColumns.length == 0 || updateColumns.equals("*"))
-            updateColumns = columns.split(",");
-        return update(jc, obj, updateColumns, new String[]{"id"});
+        if(updateColumns == null || updateColumns.length == 0 || updateColumns.equals("*")) {
+            String[] dirty = getDirtyColumns(obj);
+            if(dirty != null && dirty.length == 0)
+                return 0;
+            int updated = update(jc, obj, dirty == null ? columnNames : dirty, ID_COLUMNS);
+            track(obj);
+            return updated;
+        }
+        return update(jc, obj, updateColumns, ID_COLUMNS);
+    }
+    
+    /**
+     * Groups the entities by the set of columns they changed and sends one
+     * batch per group. Counts are in the order of objs, 0 for unchanged ones.
+     */
+    private int[] batchUpdateDirty(NamedParameterJdbcTemplate jc, List<?> objs) {
+        long now = System.currentTimeMillis();
+        int[] counts = new int[objs.size()];
+        Map<ShapeKey, List<Integer>> groups = new LinkedHashMap<ShapeKey, List<Integer>>();
+        Map<ShapeKey, String[]> groupColumns = new HashMap<ShapeKey, String[]>();
+        for(int i=0; i<counts.length; i++) {
+            String[] dirty = getDirtyColumns(objs.get(i));
+            if(dirty == null)
+                dirty = columnNames;
+            else if(dirty.length == 0)
+                continue;
+            ShapeKey key = new ShapeKey("update", dirty, ID_COLUMNS);
+            List<Integer> group = groups.get(key);
+            if(group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(key, group);
+                groupColumns.put(key, dirty);
+            }
+            group.add(i);
+        }
+        
+        for(Entry<ShapeKey, List<Integer>> entry : groups.entrySet()) {
+            String[] updateColumns = groupColumns.get(entry.getKey());
+            List<Integer> group = entry.getValue();
+            SqlParameterSource[] batch = new SqlParameterSource[group.size()];
+            for(int i=0; i<batch.length; i++) {
+                batch[i] = new MapSqlParameterSource(getUpdateValues(objs.get(group.get(i)), updateColumns, ID_COLUMNS, now));
+            }
+            int[] result = jc.batchUpdate(getUpdateStatement(updateColumns, ID_COLUMNS).sql, batch);
+            for(int i=0; i<result.length; i++) {
+                counts[group.get(i)] = result[i];
+                track(objs.get(group.get(i)));
+            }
+        }
+        return counts;
+    }
+    
+    /**
+     * Turns dirty tracking on or off. When on, entities loaded through this
+     * ORMClass's row mappers are snapshotted, weakly and by identity, and
+     * updateEntity / batchUpdateEntity without columns only write what
+     * changed since.
+     */
+    public void setDirtyTracking(boolean dirtyTracking) {
+        snapshots = dirtyTracking ? new WeakIdentityMap<Object, Object[]>() : null;
+    }
+    
+    public boolean isDirtyTracking() {
+        return snapshots != null;
+    }
+    
+    /**
+     * @return columns whose value differs from the entity's snapshot, updated
+     * excepted, or null when the entity is not tracked.
+     */
+    public String[] getDirtyColumns(Object obj) {
+        WeakIdentityMap<Object, Object[]> tracked = snapshots;
+        Object[] snapshot = tracked == null ? null : tracked.get(obj);
+        if(snapshot == null)
+            return null;
+        Object[] current = snapshot(obj);
+        List<String> dirty = new ArrayList<String>();
+        for(int i=0; i<columnNames.length; i++) {
+            if(!columnNames[i].equals("updated") && !sameValue(snapshot[i], current[i]))
+                dirty.add(columnNames[i]);
+        }
+        return dirty.toArray(new String[dirty.size()]);
+    }
+    
+    private void track(Object obj) {
+        WeakIdentityMap<Object, Object[]> tracked = snapshots;
+        if(tracked != null)
+            tracked.put(obj, snapshot(obj));
+    }
+    
+    private Object[] snapshot(Object obj) {
+        Map<String, Object> values = getValueMap(obj);
+        Object[] snapshot = new Object[columnNames.length];
+        for(int i=0; i<snapshot.length; i++) {
+            Object value = values.get(columnNames[i]);
+            if(value instanceof Date)
+                value = ((Date) value).getTime();
+            else if(value instanceof byte[])
+                value = ((byte[]) value).clone();
+            snapshot[i] = value;
+        }
+        return snapshot;
+    }
+    
+    private static boolean sameValue(Object a, Object b) {
+        if(a == null)
+            return b == null;
+        if(a instanceof byte[])
+            return b instanceof byte[] && Arrays.equals((byte[]) a, (byte[]) b);
+        return a.equals(b);
     }
 
     public int delete(NamedParameterJdbcTemplate jc, Map<String, ?> values) {
         try {
-            StringBuilder sql = new StringBuilder();
-            sql.append("delete from ").append(getTableName()).append(" ");
-            boolean first = true;
-            if(values != null && values.size() > 0) {
-                sql.append(" where ");
-                first = true;
-                for(String column : values.keySet().toArray(new String[0])) {
-                    if(first) {
-                        first = false;
-                    }
-                    else {
-                        sql.append(" and ");
+            ShapeKey key = new ShapeKey("delete", null, keys(values));
+            Statement statement = statements.get(key);
+            if(statement == null) {
+                String[] whereColumns = sortedKeys(values);
+                StringBuilder sql = new StringBuilder();
+                sql.append("delete from ").append(getTableName()).append(" ");
+                if(whereColumns.length > 0) {
+                    sql.append(" where ");
+                    boolean first = true;
+                    for(String column : whereColumns) {
+                        if(first) {
+                            first = false;
+                        }
+                        else {
+                            sql.append(" and ");
+                        }
+                        sql.append(column).append("=:").append(column).append(" ");
                     }
-                    sql.append(column).append("=:").append(column).append(" ");
                 }
+                statement = cacheStatement(key, new Statement(sql.toString(), null, null));
             }
-            return jc.update(sql.toString(), values);
+            return jc.update(statement.sql, values);
         }
         catch (Exception e) {
             throw new RuntimeException(e);
@@ -348,62 +823,165 @@ public class ORMClass<T> {
 
     public int update(NamedParameterJdbcTemplate jc, Map<String, ? extends Object> values, Map<String, ? extends Object> where) {
         try {
-            Map<String, Object> params = new HashMap<String, Object>();
-            StringBuilder sql = new StringBuilder();
-            sql.append("update ").append(getTableName()).append(" set ");
-            boolean first = true;
-            if(fields.containsKey("updated")) {
-                first = false;
-                long time = System.currentTimeMillis();
-                sql.append(" updated = ").append(time);
-            }
-            for(Entry<String, ? extends Object> entry : values.entrySet()) {
-                String column = entry.getKey();
-                Object value = entry.getValue();
-                if(first) {
+            boolean stamp = fields.containsKey("updated") && !values.containsKey("updated");
+            ShapeKey key = new ShapeKey(stamp ? "update-values-stamped" : "update-values", keys(values), keys(where));
+            Statement statement = statements.get(key);
+            if(statement == null) {
+                String[] updateColumns = sortedKeys(values);
+                String[] whereColumns = sortedKeys(where);
+                String[] paramNames = new String[updateColumns.length];
+                StringBuilder sql = new StringBuilder();
+                sql.append("update ").append(getTableName()).append(" set ");
+                boolean first = true;
+                if(stamp) {
                     first = false;
+                    sql.append(" updated=:uupdated ");
                 }
-                else {
-                    sql.append(",");
-                }
-                String paramName = "u" + column;
-                sql.append(column).append("=:").append(paramName).append(" ");
-                Field field = fields.get(column);
-                if(field.getType().isEnum()) {
-                    params.put(paramName, value == null ? value : value.toString());
-                }
-                else {
-                    params.put(paramName, value);
-                }
-            }
-            if(where != null && where.size() > 0) {
-                sql.append(" where ");
-                first = true;
-                for(Entry<String, ? extends Object> entry : where.entrySet()) {
-                    String column = entry.getKey();
-                    Object value = entry.getValue();
+                for(int i=0; i<updateColumns.length; i++) {
                     if(first) {
                         first = false;
                     }
                     else {
-                        sql.append(" and ");
-                    }
-                    sql.append(column).append("=:").append(column).append(" ");
-                    Field field = fields.get(column);
-                    if(field.getType().isEnum()) {
-                        params.put(column, value == null ? value : value.toString());
+                        sql.append(",");
                     }
-                    else {
-                        params.put(column, value);
+                    paramNames[i] = "u" + updateColumns[i];
+                    sql.append(updateColumns[i]).append("=:").append(paramNames[i]).append(" ");
+                }
+                if(whereColumns.length > 0) {
+                    sql.append(" where ");
+                    first = true;
+                    for(String column : whereColumns) {
+                        if(first) {
+                            first = false;
+                        }
+                        else {
+                            sql.append(" and ");
+                        }
+                        sql.append(column).append("=:").append(column).append(" ");
                     }
                 }
+                statement = cacheStatement(key, new Statement(sql.toString(), updateColumns, paramNames));
+            }
+            
+            Map<String, Object> params = new HashMap<String, Object>();
+            if(stamp)
+                params.put("uupdated", System.currentTimeMillis());
+            for(int i=0; i<statement.columns.length; i++) {
+                String column = statement.columns[i];
+                params.put(statement.params[i], toParam(fields.get(column), values.get(column)));
+            }
+            if(where != null) {
+                for(Entry<String, ? extends Object> entry : where.entrySet()) {
+                    params.put(entry.getKey(), toParam(fields.get(entry.getKey()), entry.getValue()));
+                }
             }
-            return jc.update(sql.toString(), params);
+            return jc.update(statement.sql, params);
         }
         catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
+    
+    private static Set<String> keys(Map<String, ?> map) {
+        return map == null ? Collections.<String>emptySet() : map.keySet();
+    }
+    
+    /**
+     * Map based callers build their SQL from the keys sorted, so the same set
+     * of columns always builds the same SQL text, which also lets drivers
+     * reuse their prepared statements. Only done on a cache miss.
+     */
+    private static String[] sortedKeys(Map<String, ?> map) {
+        if(map == null || map.isEmpty())
+            return new String[0];
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+    
+    private Statement cacheStatement(ShapeKey key, Statement statement) {
+        if(statements.size() >= MAX_STATEMENTS)
+            return statement;
+        Statement existing = statements.putIfAbsent(key.copy(), statement);
+        return existing == null ? statement : existing;
+    }
+    
+    /**
+     * Cache key of a statement's shape: the operation and two column parts,
+     * each either an array whose order counts or, for map based callers, a
+     * key set whose order does not. The hash is computed once. Lookups wrap
+     * the caller's array or the map's key set as they are; only a key being
+     * cached is copied.
+     */
+    private static final class ShapeKey {
+        private final String operation;
+        private final Object columns;
+        private final Object whereColumns;
+        private final int hash;
+        
+        public ShapeKey(String operation, Object columns, Object whereColumns) {
+            this.operation = operation;
+            this.columns = columns;
+            this.whereColumns = whereColumns;
+            this.hash = (operation.hashCode() * 31 + partHash(columns)) * 31 + partHash(whereColumns);
+        }
+        
+        public ShapeKey copy() {
+            return new ShapeKey(operation, copyPart(columns), copyPart(whereColumns));
+        }
+        
+        private static Object copyPart(Object part) {
+            if(part instanceof String[])
+                return ((String[]) part).clone();
+            if(part instanceof Set)
+                return new HashSet<Object>((Set<?>) part);
+            return null;
+        }
+        
+        private static int partHash(Object part) {
+            if(part instanceof String[])
+                return Arrays.hashCode((String[]) part);
+            return part == null ? 0 : part.hashCode();
+        }
+        
+        private static boolean samePart(Object a, Object b) {
+            if(a instanceof String[])
+                return b instanceof String[] && Arrays.equals((String[]) a, (String[]) b);
+            return a == null ? b == null : !(b instanceof String[]) && a.equals(b);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof ShapeKey))
+                return false;
+            ShapeKey other = (ShapeKey) obj;
+            return hash == other.hash && operation.equals(other.operation)
+                    && samePart(columns, other.columns) && samePart(whereColumns, other.whereColumns);
+        }
+    }
+    
+    /**
+     * SQL text of one statement shape and, when the shape renames them, the
+     * columns it binds, in SQL order, with the parameter name of each.
+     */
+    private static class Statement {
+        private final String sql;
+        private final String[] columns;
+        private final String[] params;
+        
+        public Statement(String sql, String[] columns, String[] params) {
+            this.sql = sql;
+            this.columns = columns;
+            this.params = params;
+        }
+    }
 
     public <C> List<C> queryColumn(NamedParameterJdbcTemplate jc, String column, Map where) {
         List<?> objects = query(jc, where, column);
@@ -421,6 +999,33 @@ public class ORMClass<T> {
         return result;
     }
 
+    public Comparator<T> getComparator(String column, final boolean desc) {
+        final Field field = getField(column);
+        if(field == null)
+            throw new RuntimeException("no field for column " + column + " in " + cls.getName());
+        return new Comparator<T>() {
+            @Override
+            public int compare(T o1, T o2) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    Comparable<Object> v1 = (Comparable<Object>) field.get(o1);
+                    Object v2 = field.get(o2);
+                    int result;
+                    if(v1 == null)
+                        result = v2 == null ? 0 : -1;
+                    else if(v2 == null)
+                        result = 1;
+                    else
+                        result = v1.compareTo(v2);
+                    return desc ? -result : result;
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
     public T queryUniqueBySql(NamedParameterJdbcTemplate npjc, String sql, Map params) {
         List<T> result = queryBySql(npjc, sql, params);
         if(result.size() == 0)
@@ -467,7 +1072,74 @@ public class ORMClass<T> {
 	
 	public String getObjectId(Object obj) {
 		try {
-			return (String) idField.get(obj);
+			Object id = mapper != null ? mapper.getId(cls.cast(obj)) : idAccessor.get(obj);
+			return id == null ? null : id.toString();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Value to bind for an id in its string form: the 16 bytes of a CompactId
+	 * id, which is stored as BINARY(16), or the string itself.
+	 */
+	public Object toIdParam(String id) {
+		if(id == null || idField == null || idField.getType() != CompactId.class)
+			return id;
+		return CompactId.parse(id).toBytes();
+	}
+
+	public List<Object> toIdParams(Collection<String> ids) {
+		List<Object> params = new ArrayList<Object>(ids.size());
+		for(String id : ids) {
+			params.add(toIdParam(id));
+		}
+		return params;
+	}
+
+	/**
+	 * Reads an id column in the string form getObjectId returns.
+	 */
+	public String getId(ResultSet rs, int column) throws SQLException {
+		if(idField != null && idField.getType() == CompactId.class) {
+			CompactId id = CompactId.fromBytes(rs.getBytes(column));
+			return id == null ? null : id.toString();
+		}
+		return rs.getString(column);
+	}
+
+	public RowMapper<String> getIdRowMapper() {
+		return new RowMapper<String>() {
+			@Override
+			public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+				return getId(rs, 1);
+			}
+		};
+	}
+
+	/**
+	 * Field by field copy of obj. Date and byte[] values are cloned so the copy
+	 * shares no mutable column value with obj, and a dirty tracked obj's
+	 * snapshot carries over to the copy.
+	 */
+	public T copy(T obj) {
+		if(obj == null)
+			return null;
+		try {
+			T copy = mapper != null ? mapper.newInstance() : cls.getDeclaredConstructor().newInstance();
+			for(FieldAccessor accessor : accessors.values()) {
+				Object value = accessor.get(obj);
+				if(value instanceof Date)
+					value = ((Date) value).clone();
+				else if(value instanceof byte[])
+					value = ((byte[]) value).clone();
+				accessor.set(copy, value);
+			}
+			WeakIdentityMap<Object, Object[]> tracked = snapshots;
+			Object[] snapshot = tracked == null ? null : tracked.get(obj);
+			if(snapshot != null)
+				tracked.put(copy, snapshot);
+			return copy;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -479,5 +1151,6 @@ public class ORMClass<T> {
 
 	public void setIdField(Field idField) {
 		this.idField = idField;
+		this.idAccessor = FieldAccessor.of(idField);
 	}
 }
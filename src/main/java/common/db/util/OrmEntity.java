@@ -0,0 +1,20 @@
+package common.db.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity for the common-web-apt annotation processor, which generates
+ * an EntityMapper named &lt;Entity&gt;_OrmMapper next to it. ORMClass uses the
+ * generated mapper when it is on the classpath and reflection otherwise.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface OrmEntity {
+	/**
+	 * Table name, the class's simple name when empty.
+	 */
+	String table() default "";
+}
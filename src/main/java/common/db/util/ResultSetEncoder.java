@@ -0,0 +1,245 @@
+package common.db.util;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Encodes result set rows as UTF-8 straight into a growable byte buffer that
+ * the caller drains and reuses, so exporting never builds per-row strings
+ * beyond what the driver hands back.
+ */
+public class ResultSetEncoder {
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	
+	private ExportFormat format;
+	private String[] labels;
+	private boolean[] unquoted;
+	private byte[] buf;
+	private int length;
+	
+	public ResultSetEncoder(ExportFormat format, int capacity) {
+		this.format = format;
+		this.buf = new byte[capacity];
+	}
+	
+	public void init(ResultSetMetaData metaData) throws SQLException {
+		int cnt = metaData.getColumnCount();
+		labels = new String[cnt];
+		unquoted = new boolean[cnt];
+		for(int i=0; i<cnt; i++) {
+			labels[i] = metaData.getColumnLabel(i+1);
+			switch (metaData.getColumnType(i+1)) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				unquoted[i] = true;
+				break;
+			default:
+				unquoted[i] = false;
+			}
+		}
+	}
+	
+	public boolean isInitialized() {
+		return labels != null;
+	}
+	
+	public String[] getLabels() {
+		return labels;
+	}
+	
+	public void header(String[] labels) {
+		if(format == ExportFormat.NDJSON)
+			return;
+		for(int i=0; i<labels.length; i++) {
+			if(i > 0)
+				separator();
+			value(labels[i], false);
+		}
+		put((byte) '\n');
+	}
+	
+	public void row(ResultSet rs) throws SQLException {
+		if(format == ExportFormat.NDJSON)
+			put((byte) '{');
+		for(int i=0; i<labels.length; i++) {
+			if(i > 0)
+				separator();
+			if(format == ExportFormat.NDJSON) {
+				jsonString(labels[i]);
+				put((byte) ':');
+			}
+			value(rs.getString(i+1), unquoted[i]);
+		}
+		if(format == ExportFormat.NDJSON)
+			put((byte) '}');
+		put((byte) '\n');
+	}
+	
+	public byte[] getBuffer() {
+		return buf;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public void reset(byte[] buffer) {
+		this.buf = buffer;
+		this.length = 0;
+	}
+	
+	private void separator() {
+		switch (format) {
+		case TSV:
+			put((byte) '\t');
+			break;
+		default:
+			put((byte) ',');
+		}
+	}
+	
+	private void value(String value, boolean number) {
+		switch (format) {
+		case TSV:
+			if(value == null) {
+				put((byte) '\\');
+				put((byte) 'N');
+			}
+			else {
+				tsvString(value);
+			}
+			break;
+		case CSV:
+			if(value != null)
+				csvString(value);
+			break;
+		case NDJSON:
+			if(value == null) {
+				ascii("null");
+			}
+			else if(number) {
+				ascii(value);
+			}
+			else {
+				jsonString(value);
+			}
+			break;
+		}
+	}
+	
+	private void tsvString(String s) {
+		for(int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\t': put((byte) '\\'); put((byte) 't'); break;
+			case '\n': put((byte) '\\'); put((byte) 'n'); break;
+			case '\r': put((byte) '\\'); put((byte) 'r'); break;
+			case '\\': put((byte) '\\'); put((byte) '\\'); break;
+			default: i = utf8(s, i);
+			}
+		}
+	}
+	
+	private void csvString(String s) {
+		boolean quote = false;
+		for(int i=0; i<s.length() && !quote; i++) {
+			char c = s.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(!quote) {
+			for(int i=0; i<s.length(); i++) {
+				i = utf8(s, i);
+			}
+			return;
+		}
+		put((byte) '"');
+		for(int i=0; i<s.length(); i++) {
+			if(s.charAt(i) == '"')
+				put((byte) '"');
+			i = utf8(s, i);
+		}
+		put((byte) '"');
+	}
+	
+	private void jsonString(String s) {
+		put((byte) '"');
+		for(int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': put((byte) '\\'); put((byte) '"'); break;
+			case '\\': put((byte) '\\'); put((byte) '\\'); break;
+			case '\n': put((byte) '\\'); put((byte) 'n'); break;
+			case '\r': put((byte) '\\'); put((byte) 'r'); break;
+			case '\t': put((byte) '\\'); put((byte) 't'); break;
+			default:
+				if(c < 0x20) {
+					ascii("\\u00");
+					put(HEX[c >> 4]);
+					put(HEX[c & 0xf]);
+				}
+				else {
+					i = utf8(s, i);
+				}
+			}
+		}
+		put((byte) '"');
+	}
+	
+	private void ascii(String s) {
+		ensure(s.length());
+		for(int i=0; i<s.length(); i++) {
+			buf[length++] = (byte) s.charAt(i);
+		}
+	}
+	
+	private int utf8(String s, int i) {
+		char c = s.charAt(i);
+		ensure(4);
+		if(c < 0x80) {
+			buf[length++] = (byte) c;
+		}
+		else if(c < 0x800) {
+			buf[length++] = (byte) (0xc0 | (c >> 6));
+			buf[length++] = (byte) (0x80 | (c & 0x3f));
+		}
+		else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))) {
+			int cp = Character.toCodePoint(c, s.charAt(i+1));
+			buf[length++] = (byte) (0xf0 | (cp >> 18));
+			buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+			buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+			buf[length++] = (byte) (0x80 | (cp & 0x3f));
+			return i + 1;
+		}
+		else if(Character.isSurrogate(c)) {
+			buf[length++] = (byte) '?';
+		}
+		else {
+			buf[length++] = (byte) (0xe0 | (c >> 12));
+			buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buf[length++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+	
+	private void put(byte b) {
+		ensure(1);
+		buf[length++] = b;
+	}
+	
+	private void ensure(int extra) {
+		if(length + extra > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, length + extra)];
+			System.arraycopy(buf, 0, bigger, 0, length);
+			buf = bigger;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package common.db.util;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * JdbcTemplate for long scans. JdbcTemplate only applies positive fetch
+ * sizes, but MySQL Connector/J streams a result set row by row only when the
+ * fetch size is Integer.MIN_VALUE, and buffers all of it otherwise. This
+ * template hands negative fetch sizes to the statement as well.
+ */
+public class StreamingJdbcTemplate extends JdbcTemplate {
+	public StreamingJdbcTemplate(DataSource dataSource, int fetchSize) {
+		super(dataSource);
+		setFetchSize(fetchSize);
+	}
+
+	@Override
+	protected void applyStatementSettings(Statement stmt) throws SQLException {
+		super.applyStatementSettings(stmt);
+		if(getFetchSize() < 0)
+			stmt.setFetchSize(getFetchSize());
+	}
+}
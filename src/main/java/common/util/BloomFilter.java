@@ -0,0 +1,88 @@
+package common.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free Bloom filter over strings. Bits live in an AtomicLongArray so add
+ * and mightContain can run concurrently without a monitor.
+ */
+public class BloomFilter {
+	private static final int MAGIC = 0x424c4f4d;
+	
+	private AtomicLongArray bits;
+	private long numBits;
+	private int numHashes;
+	
+	public BloomFilter(long expectedInsertions, double fpp) {
+		long n = Math.max(1, expectedInsertions);
+		long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, m);
+		int words = (int) ((m + 63) / 64);
+		this.bits = new AtomicLongArray(words);
+		this.numBits = words * 64L;
+		this.numHashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+	}
+	
+	private BloomFilter(AtomicLongArray bits, int numHashes) {
+		this.bits = bits;
+		this.numBits = bits.length() * 64L;
+		this.numHashes = numHashes;
+	}
+	
+	public void add(CharSequence key) {
+		long hash = Hashing.hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for(int i=1; i<=numHashes; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			while(true) {
+				long current = bits.get(word);
+				if((current & mask) != 0 || bits.compareAndSet(word, current, current | mask))
+					break;
+			}
+		}
+	}
+	
+	public boolean mightContain(CharSequence key) {
+		long hash = Hashing.hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for(int i=1; i<=numHashes; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if((bits.get((int) (index >>> 6)) & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+	
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeInt(numHashes);
+		dos.writeInt(bits.length());
+		for(int i=0; i<bits.length(); i++) {
+			dos.writeLong(bits.get(i));
+		}
+		dos.flush();
+	}
+	
+	public static BloomFilter readFrom(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if(dis.readInt() != MAGIC)
+			throw new IOException("not a bloom filter stream");
+		int numHashes = dis.readInt();
+		int words = dis.readInt();
+		AtomicLongArray bits = new AtomicLongArray(words);
+		for(int i=0; i<words; i++) {
+			bits.set(i, dis.readLong());
+		}
+		return new BloomFilter(bits, numHashes);
+	}
+}
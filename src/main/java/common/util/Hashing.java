@@ -0,0 +1,31 @@
+package common.util;
+
+public class Hashing {
+	private static final long PRIME = 0x9E3779B97F4A7C15L;
+	
+	/**
+	 * 64 bit hash of the chars of s, computed without copying or encoding the
+	 * string. Finalized with the murmur3 fmix64 avalanche step.
+	 */
+	public static long hash64(CharSequence s, long seed) {
+		long h = seed ^ (s.length() * PRIME);
+		for(int i=0; i<s.length(); i++) {
+			h = (h ^ s.charAt(i)) * PRIME;
+			h = Long.rotateLeft(h, 31);
+		}
+		return fmix64(h);
+	}
+	
+	public static long hash64(CharSequence s) {
+		return hash64(s, 0);
+	}
+	
+	public static long fmix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,52 @@
+package common.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent latency samples of a fixed number of channels (shards)
+ * in ring buffers and answers percentile queries over them.
+ */
+public class LatencyTracker {
+	private int window;
+	private AtomicLongArray samples;
+	private AtomicIntegerArray counts;
+	
+	public LatencyTracker(int channels, int window) {
+		this.window = window;
+		this.samples = new AtomicLongArray(channels * window);
+		this.counts = new AtomicIntegerArray(channels);
+	}
+	
+	public int getChannels() {
+		return counts.length();
+	}
+	
+	public void record(int channel, long millis) {
+		int n = counts.getAndIncrement(channel) & Integer.MAX_VALUE;
+		samples.set(channel * window + (n % window), millis);
+	}
+	
+	public int getSampleCount(int channel) {
+		int n = counts.get(channel);
+		return n < 0 || n >= window ? window : n;
+	}
+	
+	/**
+	 * @return the p-th percentile (0 < p <= 1) of the recent samples, or -1 when
+	 * the channel has no samples yet.
+	 */
+	public long percentile(int channel, double p) {
+		int n = getSampleCount(channel);
+		if(n == 0)
+			return -1;
+		long[] copy = new long[n];
+		for(int i=0; i<n; i++) {
+			copy[i] = samples.get(channel * window + i);
+		}
+		Arrays.sort(copy);
+		int index = (int) Math.ceil(p * n) - 1;
+		return copy[Math.max(0, Math.min(n - 1, index))];
+	}
+}
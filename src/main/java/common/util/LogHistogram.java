@@ -0,0 +1,82 @@
+package common.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non negative longs over log-linear buckets, in the
+ * style of HdrHistogram: values below 2^SUB_BITS are exact, larger values fall
+ * in one of 2^SUB_BITS buckets per power of two, so any recorded value is
+ * reported within about 3% of itself. Recording never allocates.
+ */
+public class LogHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	private static int index(long value) {
+		if(value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+	
+	private static long highestValue(int index) {
+		if(index < SUB_COUNT)
+			return index;
+		int exponent = (index >> SUB_BITS) + SUB_BITS - 1;
+		long sub = index & (SUB_COUNT - 1);
+		return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getTotal() {
+		return total.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+	
+	/**
+	 * @return the p-th percentile (0 < p <= 1), or 0 when nothing was recorded.
+	 */
+	public long percentile(double p) {
+		long n = count.get();
+		if(n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * n));
+		long seen = 0;
+		for(int i=0; i<counts.length(); i++) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+}
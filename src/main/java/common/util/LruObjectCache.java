@@ -0,0 +1,112 @@
+package common.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded LRU cache with an optional time to live. Keys are spread over
+ * independently locked segments, each evicting its own least recently used
+ * entry, so concurrent readers rarely meet on the same monitor.
+ */
+public class LruObjectCache implements ObjectCache {
+	private static final int SEGMENTS = 16;
+	
+	private Segment[] segments;
+	private long ttl;
+	
+	public LruObjectCache(int maxSize) {
+		this(maxSize, 0);
+	}
+	
+	public LruObjectCache(int maxSize, long ttlMillis) {
+		this.ttl = ttlMillis;
+		int perSegment = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+		segments = new Segment[SEGMENTS];
+		for(int i=0; i<SEGMENTS; i++) {
+			segments[i] = new Segment(perSegment);
+		}
+	}
+	
+	private Segment segment(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+	
+	@Override
+	public Object get(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if(entry == null)
+				return null;
+			if(entry.expireAt != 0 && entry.expireAt < System.currentTimeMillis()) {
+				segment.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+	
+	@Override
+	public void put(String key, Object value) {
+		long expireAt = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, new Entry(value, expireAt));
+		}
+	}
+	
+	@Override
+	public void remove(String key) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+	
+	@Override
+	public void clear() {
+		for(Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for(Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	private static class Entry {
+		private Object value;
+		private long expireAt;
+		
+		public Entry(Object value, long expireAt) {
+			this.value = value;
+			this.expireAt = expireAt;
+		}
+	}
+	
+	private static class Segment extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		
+		private int maxSize;
+		
+		public Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	}
+}
@@ -5,6 +5,17 @@ import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 public class MultiTask {
+	/**
+	 * Task with work to do on the submitting thread before it is handed to the
+	 * executor, such as taking a permit. A task whose submitting throws fails
+	 * with that exception and is never submitted; submitFailed undoes
+	 * submitting when the executor refuses the task.
+	 */
+	public interface SubmitAware {
+		void submitting();
+		void submitFailed();
+	}
+	
 	private List<Runnable> tasks;
 	private int finished;
 	
@@ -22,12 +33,39 @@ public class MultiTask {
 		tasks.add(task);
 	}
 	
+	public int size() {
+		return tasks == null ? 0 : tasks.size();
+	}
+	
+	/**
+	 * Runs the tasks and waits for all of them. Without tasks there is nothing
+	 * to wait for and it returns at once.
+	 */
 	public void execute(ExecutorService es) {
+		if(tasks == null || tasks.isEmpty())
+			return;
 		List<TaskRunnable> list = new ArrayList<MultiTask.TaskRunnable>();
 		for(Runnable r : tasks) {
 			TaskRunnable wrapper = new TaskRunnable(r);
-			es.execute(wrapper);
 			list.add(wrapper);
+			if(r instanceof SubmitAware) {
+				try {
+					((SubmitAware) r).submitting();
+				} catch (Exception e) {
+					wrapper.e = e;
+					wrapper.finish();
+					continue;
+				}
+				try {
+					es.execute(wrapper);
+				} catch (RuntimeException e) {
+					((SubmitAware) r).submitFailed();
+					throw e;
+				}
+			}
+			else {
+				es.execute(wrapper);
+			}
 		}
 		synchronized (this) {
 			while(finished < tasks.size()) {
@@ -62,11 +100,15 @@ public class MultiTask {
 				this.e = e;
 			}
 			finally {
-				synchronized (MultiTask.this) {
-					finished++;
-					if(finished >= tasks.size()) {
-						MultiTask.this.notify();
-					}
+				finish();
+			}
+		}
+		
+		private void finish() {
+			synchronized (MultiTask.this) {
+				finished++;
+				if(finished >= tasks.size()) {
+					MultiTask.this.notify();
 				}
 			}
 		}
@@ -0,0 +1,8 @@
+package common.util;
+
+public interface ObjectCache {
+	Object get(String key);
+	void put(String key, Object value);
+	void remove(String key);
+	void clear();
+}
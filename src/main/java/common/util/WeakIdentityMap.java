@@ -0,0 +1,68 @@
+package common.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map keyed by object identity that does not keep its keys alive.
+ * Unlike WeakHashMap it never calls the keys' equals or hashCode, so entries
+ * of mutable objects stay reachable while the objects change. Entries of
+ * collected keys are purged on the next access.
+ */
+public class WeakIdentityMap<K, V> {
+	private final ConcurrentHashMap<Key<K>, V> map = new ConcurrentHashMap<Key<K>, V>();
+	private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+	public V get(K key) {
+		purge();
+		return map.get(new Key<K>(key, null));
+	}
+
+	public V put(K key, V value) {
+		purge();
+		return map.put(new Key<K>(key, queue), value);
+	}
+
+	public V remove(K key) {
+		purge();
+		return map.remove(new Key<K>(key, null));
+	}
+
+	public int size() {
+		purge();
+		return map.size();
+	}
+
+	private void purge() {
+		Reference<? extends K> reference;
+		while((reference = queue.poll()) != null) {
+			map.remove(reference);
+		}
+	}
+
+	private static class Key<K> extends WeakReference<K> {
+		private final int hash;
+
+		public Key(K referent, ReferenceQueue<K> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this)
+				return true;
+			if(!(o instanceof Key))
+				return false;
+			Object referent = get();
+			return referent != null && referent == ((Key<?>) o).get();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package common.db.shard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import common.db.util.ExportFormat;
+import common.db.util.RowMapped;
+import common.util.BloomFilter;
+import common.util.LruObjectCache;
+
+public class ClusterDataDaoImplTest extends TestCase {
+	private H2ClusterDao dao;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dao = new H2ClusterDao(getName(), 3, false);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		dao.shutdown();
+	}
+	
+	public void testEmptyInputsDoNothing() throws Exception {
+		dao.replace(Collections.<Item>emptyList());
+		dao.remove(Collections.<String>emptyList());
+		assertTrue(dao.get(Collections.<String>emptyList()).isEmpty());
+		assertTrue(dao.existingIds(Collections.<String>emptyList()).isEmpty());
+		dao.updateShards("update Item set score = 1", Collections.<Integer, Object[]>emptyMap());
+		dao.replaceAsync(Collections.<Item>emptyList()).get();
+		assertTrue(dao.getAsync(Collections.<String>emptyList()).get().isEmpty());
+	}
+	
+	public void testSortedLimitMergesShards() {
+		List<Item> items = new ArrayList<Item>();
+		for(int i=0; i<300; i++) {
+			Item item = new Item(H2ClusterDao.newId(i % 3), "n" + i);
+			item.score = (i * 37) % 300;
+			items.add(item);
+		}
+		dao.replace(items);
+		dao.setMergeQueueSize(2);
+		
+		List<Item> top = dao.queryAllShards("select * from Item", new Object[0], "score", true, 10);
+		assertEquals(10, top.size());
+		for(int i=0; i<10; i++) {
+			assertEquals(299 - i, top.get(i).score);
+		}
+		List<Item> all = dao.queryAllShards("select * from Item where score < :max", Collections.<String, Object>singletonMap("max", 1000), "score", false, 1000);
+		assertEquals(300, all.size());
+		assertEquals(0, all.get(0).score);
+		assertEquals(299, all.get(299).score);
+	}
+	
+	public void testCachedEntitiesAreCopies() throws Exception {
+		dao.setEntityCache(new LruObjectCache(100));
+		Item item = new Item(H2ClusterDao.newId(1), "stored");
+		dao.replace(item);
+		
+		dao.get(item.id).name = "changed";
+		assertEquals("stored", dao.get(item.id).name);
+		dao.get(Arrays.asList(item.id)).get(0).name = "changed";
+		assertEquals("stored", dao.get(item.id).name);
+		dao.getAsync(Arrays.asList(item.id)).get().get(0).name = "changed";
+		assertEquals("stored", dao.get(item.id).name);
+		assertEquals("stored", dao.get(Arrays.asList(item.id)).get(0).name);
+	}
+	
+	public void testBufferedEntitiesAreCopies() {
+		dao.setWriteBehindMillis(60000);
+		Item item = new Item(H2ClusterDao.newId(2), "buffered");
+		dao.replace(item);
+		
+		dao.get(item.id).name = "changed";
+		dao.get(Arrays.asList(item.id)).get(0).name = "changed";
+		dao.flush();
+		assertEquals("buffered", dao.read(2, item.id).name);
+	}
+	
+	public void testAsyncWriteSupersedesBufferedWrite() throws Exception {
+		dao.setWriteBehindMillis(60000);
+		Item old = new Item(H2ClusterDao.newId(1), "old");
+		dao.replace(old);
+		dao.replaceAsync(Arrays.asList(new Item(old.id, "new"))).get();
+		dao.replaceAsync(new Item(H2ClusterDao.newId(1), "other")).get();
+		dao.flush();
+		assertEquals("new", dao.read(1, old.id).name);
+		assertEquals(0, dao.getPendingWriteCount());
+	}
+	
+	public void testFullBufferRejectsWritesWhileFlushFails() {
+		dao.setWriteBehindMillis(60000);
+		dao.setWriteBehindMaxPending(2);
+		dao.replace(new Item(H2ClusterDao.newId(0), "a"));
+		dao.replace(new Item(H2ClusterDao.newId(0), "b"));
+		dao.getShardedDataSource().getJdbcTemplate(0).execute("alter table Item rename to Item_down");
+		for(int i=0; i<3; i++) {
+			try {
+				dao.replace(new Item(H2ClusterDao.newId(0), "c"));
+				fail();
+			} catch (RuntimeException expected) {
+			}
+		}
+		assertEquals(2, dao.getPendingWriteCount());
+		dao.getShardedDataSource().getJdbcTemplate(0).execute("alter table Item_down rename to Item");
+		dao.replace(new Item(H2ClusterDao.newId(0), "c"));
+		assertEquals(1, dao.getPendingWriteCount());
+	}
+	
+	public void testLoadedIdFiltersSeeLaterWrites() throws Exception {
+		dao.setIdFilterRescanMarginMillis(0);
+		Item before = new Item(H2ClusterDao.newId(0), "before");
+		dao.replace(before);
+		dao.buildIdFilters();
+		File file = File.createTempFile("idfilters", ".bin");
+		try {
+			dao.saveIdFilters(file);
+			Item after = new Item(H2ClusterDao.newId(1), "after");
+			dao.replace(after);
+			
+			dao.dropIdFilters();
+			dao.loadIdFilters(file);
+			assertEquals(new HashSet<String>(Arrays.asList(before.id, after.id)), dao.existingIds(Arrays.asList(before.id, after.id, H2ClusterDao.newId(2))));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testIdFilterFileWithoutWatermarkIsRefused() throws Exception {
+		File file = File.createTempFile("idfilters", ".bin");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(3);
+			for(int i=0; i<3; i++) {
+				new BloomFilter(100, 0.01).writeTo(out);
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			dao.loadIdFilters(file);
+			fail();
+		} catch (IOException expected) {
+		} finally {
+			file.delete();
+		}
+	}
+	
+	public void testReadYourWritesRouting() throws Exception {
+		final H2ClusterDao replicated = new H2ClusterDao(getName() + "-replicated", 3, true);
+		try {
+			replicated.setReadYourWritesMillis(60000);
+			final Item item = new Item(H2ClusterDao.newId(1), "mine");
+			replicated.replace(item);
+			
+			assertEquals("mine", replicated.get(item.id).name);
+			assertEquals(1, replicated.get(Arrays.asList(item.id)).size());
+			assertEquals(1, replicated.getAsync(Arrays.asList(item.id)).get().size());
+			assertEquals(1, replicated.queryAllShards("select * from Item", new Object[0]).size());
+			assertEquals(1, replicated.queryAllShards("select * from Item", new Object[0], "name", false, 10).size());
+			final List<Item> dumped = Collections.synchronizedList(new ArrayList<Item>());
+			replicated.dumpParallel(new ObjectDumper() {
+				@Override
+				public void dump(Object obj) {
+					dumped.add((Item) obj);
+				}
+			});
+			assertEquals(1, dumped.size());
+			ByteArrayOutputStream export = new ByteArrayOutputStream();
+			replicated.query(export, "select id from Item", ExportFormat.TSV, true);
+			assertTrue(export.toString("UTF-8").contains(item.id));
+			
+			// another caller reads the replica, which has not seen the write
+			final ConsistencySession session = replicated.getConsistencySession();
+			final Item[] seen = new Item[2];
+			Thread other = new Thread() {
+				@Override
+				public void run() {
+					seen[0] = replicated.get(item.id);
+					replicated.setConsistencySession(session);
+					seen[1] = replicated.get(item.id);
+				}
+			};
+			other.start();
+			other.join();
+			assertNull(seen[0]);
+			assertEquals("mine", seen[1].name);
+		} finally {
+			replicated.shutdown();
+		}
+	}
+	
+	public void testReplaceList() {
+		Item a = new Item(H2ClusterDao.newId(0), "a");
+		Item b = new Item(H2ClusterDao.newId(1), "b");
+		dao.replace(Arrays.asList(a, b));
+		assertEquals("a", dao.read(0, a.id).name);
+		assertEquals("b", dao.read(1, b.id).name);
+	}
+	
+	public void testInListLanesDoNotShedTheirCall() {
+		List<Item> items = new ArrayList<Item>();
+		for(int i=0; i<8; i++) {
+			items.add(new Item(H2ClusterDao.newId(0), "n" + i));
+		}
+		dao.replace(items);
+		ShardBulkhead bulkhead = new ShardBulkhead(3, 1);
+		bulkhead.setMaxWaitMillis(0);
+		dao.setShardBulkhead(bulkhead);
+		dao.setInListSize(1);
+		dao.setInListParallelism(4);
+		
+		List<String> ids = new ArrayList<String>();
+		for(Item item : items) {
+			ids.add(item.id);
+		}
+		assertEquals(8, dao.get(ids).size());
+		assertEquals(8, dao.existingIds(ids).size());
+		assertEquals(0, bulkhead.getInFlight(0));
+	}
+	
+	public void testReadPathsRecordMetrics() throws Exception {
+		Item item = new Item(H2ClusterDao.newId(1), "a");
+		dao.replace(item);
+		HistogramShardMetrics metrics = new HistogramShardMetrics();
+		dao.setMetrics(metrics);
+		
+		dao.get(item.id);
+		dao.get(Arrays.asList(item.id), new Deadline(5000, Deadline.OnTimeout.FAIL));
+		dao.queryAllShards("select * from Item", new Object[0], new Deadline(5000, Deadline.OnTimeout.FAIL));
+		dao.dumpParallel("select * from Item", new RowMapped<Item>() {
+			@Override
+			public void objectFound(Item obj) {
+			}
+		});
+		
+		assertEquals(2L, stat(metrics, "get", 1, "rows"));
+		assertEquals(2L, ((Map<?, ?>) stat(metrics, "get", 1, "latency")).get("count"));
+		assertEquals(1L, stat(metrics, "query", 1, "rows"));
+		assertEquals(1L, stat(metrics, "dump", 1, "rows"));
+	}
+	
+	private static Object stat(HistogramShardMetrics metrics, String operation, int shardId, String name) {
+		Map<?, ?> op = (Map<?, ?>) metrics.snapshot().get(operation);
+		return ((Map<?, ?>) ((Map<?, ?>) op.get("shards")).get(shardId)).get(name);
+	}
+}
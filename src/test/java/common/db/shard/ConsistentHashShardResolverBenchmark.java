@@ -0,0 +1,45 @@
+package common.db.shard;
+
+import java.util.Arrays;
+
+import common.db.util.GUID;
+
+/**
+ * Measures how many ids move when a shard is added to a
+ * ConsistentHashShardResolver, how evenly they spread and the lookup cost.
+ */
+public class ConsistentHashShardResolverBenchmark {
+	public static void main(String[] args) {
+		int shards = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : 160;
+		int keys = 1000000;
+		String[] ids = new String[keys];
+		for(int i=0; i<keys; i++) {
+			ids[i] = GUID.getRandomStringUuid((short) 0);
+		}
+
+		ConsistentHashShardResolver before = new ConsistentHashShardResolver(shards, virtualNodes);
+		ConsistentHashShardResolver after = new ConsistentHashShardResolver(shards + 1, virtualNodes);
+		int[] load = new int[shards + 1];
+		int moved = 0;
+		for(String id : ids) {
+			int to = after.getShardId(id);
+			load[to]++;
+			if(before.getShardId(id) != to)
+				moved++;
+		}
+		System.out.println("moved " + moved * 100.0 / keys + "% of keys going from " + shards + " to " + (shards + 1) + " shards, ideal " + 100.0 / (shards + 1) + "%");
+		System.out.println("keys per shard " + Arrays.toString(load));
+
+		int sink = 0;
+		for(int round=0; round<5; round++) {
+			long start = System.nanoTime();
+			for(String id : ids) {
+				sink += before.getShardId(id);
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.println("round " + round + ": " + elapsed / keys + " ns per lookup");
+		}
+		System.out.println("checksum " + sink);
+	}
+}
@@ -0,0 +1,83 @@
+package common.db.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import common.db.util.GUID;
+
+/**
+ * Dao over in-memory H2 databases in MySQL mode, one per shard, each with an
+ * optional replica that is never written to, so a read that reaches a replica
+ * does not see recent writes.
+ */
+public class H2ClusterDao extends ClusterDataDaoImpl<Item> {
+	private static final String TABLE = "create table if not exists Item(id varchar(64) primary key, name varchar(64), created bigint, updated bigint, score int)";
+	
+	private ShardedDataSourceImpl dataSource = new ShardedDataSourceImpl();
+	private ShardResolver resolver;
+	private ExecutorService executor = Executors.newFixedThreadPool(8);
+	
+	public H2ClusterDao(String name, int shards, boolean replicas) {
+		List<DataSource> primaries = new ArrayList<DataSource>();
+		List<List<DataSource>> replicaList = new ArrayList<List<DataSource>>();
+		for(int i=0; i<shards; i++) {
+			primaries.add(database(name + "-" + i));
+			List<DataSource> shardReplicas = new ArrayList<DataSource>();
+			if(replicas)
+				shardReplicas.add(database(name + "-" + i + "-replica"));
+			replicaList.add(shardReplicas);
+		}
+		dataSource.setDataSources(primaries);
+		dataSource.setReplicaDataSources(replicaList);
+		resolver = new GuidShardResolver(shards);
+		setExecutorService(executor);
+	}
+	
+	private static DataSource database(String name) {
+		DataSource ds = new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;MODE=MySQL", "sa", "");
+		JdbcTemplate template = new JdbcTemplate(ds);
+		template.execute("drop table if exists Item");
+		template.execute(TABLE);
+		return ds;
+	}
+	
+	public static String newId(int shard) {
+		return GUID.getRandomStringUuid((short) shard);
+	}
+	
+	/**
+	 * The row of id as stored in the shard's primary, not through the dao.
+	 */
+	public Item read(int shardId, String id) {
+		return getOrmClass().getById(dataSource.getNamedParameterJdbcTemplate(shardId), id);
+	}
+	
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void createSchema() {
+	}
+
+	@Override
+	public ShardedDataSource getShardedDataSource() {
+		return dataSource;
+	}
+
+	@Override
+	public ShardResolver getShardResolver() {
+		return resolver;
+	}
+	
+	public void setShardResolver(ShardResolver resolver) {
+		this.resolver = resolver;
+	}
+}
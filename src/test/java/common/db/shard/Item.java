@@ -0,0 +1,17 @@
+package common.db.shard;
+
+public class Item {
+	public String id;
+	public String name;
+	public long created;
+	public long updated;
+	public int score;
+	
+	public Item() {
+	}
+	
+	public Item(String id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+}
@@ -0,0 +1,99 @@
+package common.db.shard;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class ShardRebalancerTest extends TestCase {
+	private H2ClusterDao dao;
+	private MigratingShardResolver resolver;
+	private ExecutorService executor;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dao = new H2ClusterDao(getName(), 3, false);
+		dao.setShardResolver(new GuidShardResolver(2));
+		resolver = new MigratingShardResolver(new GuidShardResolver(2), new GuidShardResolver(3));
+		executor = Executors.newFixedThreadPool(2);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		dao.shutdown();
+	}
+	
+	private List<Item> items(int n) {
+		List<Item> items = new ArrayList<Item>();
+		for(int i=0; i<n; i++) {
+			items.add(new Item(H2ClusterDao.newId(i % 6), "v" + i));
+		}
+		return items;
+	}
+	
+	private static List<String> ids(List<Item> items) {
+		List<String> ids = new ArrayList<String>();
+		for(Item item : items) {
+			ids.add(item.id);
+		}
+		return ids;
+	}
+	
+	public void testIdFiltersAndLatencyFollowTheNewLayout() throws Exception {
+		List<Item> items = items(60);
+		dao.replace(items);
+		dao.buildIdFilters();
+		dao.get(ids(items), new Deadline(5000, Deadline.OnTimeout.FAIL));
+		
+		dao.setShardResolver(resolver);
+		ShardRebalancer<Item> rebalancer = new ShardRebalancer<Item>(dao, resolver, executor);
+		rebalancer.copy();
+		rebalancer.cutover();
+		assertEquals(new HashSet<String>(ids(items)), dao.existingIds(ids(items)));
+		assertEquals(60, dao.get(ids(items), new Deadline(5000, Deadline.OnTimeout.FAIL)).getResult().size());
+		
+		rebalancer.cleanup();
+		dao.buildIdFilters();
+		assertEquals(new HashSet<String>(ids(items)), dao.existingIds(ids(items)));
+		for(Item item : items) {
+			assertEquals(item.name, dao.read(resolver.getShardId(item.id), item.id).name);
+		}
+	}
+	
+	public void testDualWritesOfTrackedEntitiesReachTheNewShard() throws Exception {
+		dao.getOrmClass().setDirtyTracking(true);
+		List<Item> items = items(60);
+		dao.replace(items);
+		dao.setShardResolver(resolver);
+		ShardRebalancer<Item> rebalancer = new ShardRebalancer<Item>(dao, resolver, executor);
+		rebalancer.copy();
+		
+		List<Item> moved = new ArrayList<Item>();
+		for(Item item : items) {
+			if(dao.getMirrorShardId(item.id) >= 0)
+				moved.add(item);
+		}
+		assertTrue(moved.size() > 2);
+		Item single = dao.get(moved.get(0).id);
+		single.name = "changed";
+		dao.replace(single);
+		List<Item> loaded = dao.get(ids(moved.subList(1, moved.size())));
+		for(Item item : loaded) {
+			item.name = "changed";
+		}
+		dao.replace(loaded);
+		
+		for(Item item : moved) {
+			assertEquals("changed", dao.read(resolver.getShardId(item.id), item.id).name);
+			assertEquals("changed", dao.read(dao.getMirrorShardId(item.id), item.id).name);
+		}
+		rebalancer.cutover();
+		for(Item item : moved) {
+			assertEquals("changed", dao.get(item.id).name);
+		}
+	}
+}
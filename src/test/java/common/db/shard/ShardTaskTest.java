@@ -0,0 +1,51 @@
+package common.db.shard;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import common.util.MultiTask;
+
+public class ShardTaskTest extends TestCase {
+	public void testSaturatedShardDoesNotHoldUpOthers() throws Exception {
+		final ShardBulkhead bulkhead = new ShardBulkhead(2, 1);
+		bulkhead.setMaxWaitMillis(2000);
+		bulkhead.acquire(0);
+		final AtomicLong started = new AtomicLong();
+		MultiTask mt = new MultiTask();
+		mt.addTask(new ShardTask(0, new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+			}
+		}, bulkhead));
+		mt.addTask(new ShardTask(1, new ShardRunnable() {
+			@Override
+			public void run(int shardId) {
+				started.set(System.nanoTime());
+			}
+		}, bulkhead));
+		ExecutorService es = Executors.newFixedThreadPool(3);
+		try {
+			es.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+						return;
+					}
+					bulkhead.release(0, 0, false);
+				}
+			});
+			long start = System.nanoTime();
+			mt.execute(es);
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(started.get() - start) < 250);
+			assertEquals(0, bulkhead.getInFlight(0));
+		} finally {
+			es.shutdownNow();
+		}
+	}
+}
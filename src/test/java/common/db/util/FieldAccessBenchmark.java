@@ -0,0 +1,92 @@
+package common.db.util;
+
+import java.lang.reflect.Field;
+
+/**
+ * Reflective Field.get/set against the Field backed FieldAccessor and the one
+ * FieldAccessor.of spins, on a long, an int and a String field. JMH is not
+ * part of this build, so this is a plain main with warmup rounds; read the
+ * last rounds.
+ */
+public class FieldAccessBenchmark {
+    public static class Row {
+        public long count;
+        public int score;
+        public String name;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        Row[] rows = new Row[1024];
+        for(int i=0; i<rows.length; i++) {
+            rows[i] = new Row();
+            rows[i].name = "row" + i;
+        }
+        Field countField = Row.class.getField("count");
+        Field scoreField = Row.class.getField("score");
+        Field nameField = Row.class.getField("name");
+        FieldAccessor count = new FieldAccessor(countField);
+        FieldAccessor score = new FieldAccessor(scoreField);
+        FieldAccessor name = new FieldAccessor(nameField);
+        FieldAccessor spunCount = FieldAccessor.of(countField);
+        FieldAccessor spunScore = FieldAccessor.of(scoreField);
+        FieldAccessor spunName = FieldAccessor.of(nameField);
+
+        long sink = 0;
+        for(int round=0; round<5; round++) {
+            long start = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Row row = rows[i & 1023];
+                countField.set(row, (Long) countField.get(row) + 1);
+                scoreField.set(row, i);
+                sink += ((String) nameField.get(row)).length();
+            }
+            long reflective = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Row row = rows[i & 1023];
+                count.set(row, (Long) count.get(row) + 1);
+                score.set(row, i);
+                sink += ((String) name.get(row)).length();
+            }
+            long accessor = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Row row = rows[i & 1023];
+                count.setLong(row, count.getLong(row) + 1);
+                score.setInt(row, i);
+                sink += ((String) name.get(row)).length();
+            }
+            long primitive = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Row row = rows[i & 1023];
+                spunCount.set(row, (Long) spunCount.get(row) + 1);
+                spunScore.set(row, i);
+                sink += ((String) spunName.get(row)).length();
+            }
+            long spun = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i=0; i<n; i++) {
+                Row row = rows[i & 1023];
+                spunCount.setLong(row, spunCount.getLong(row) + 1);
+                spunScore.setInt(row, i);
+                sink += ((String) spunName.get(row)).length();
+            }
+            long spunPrimitive = System.nanoTime() - start;
+
+            System.out.println("round " + round + ": Field " + nanos(reflective, n)
+                    + ", FieldAccessor " + nanos(accessor, n) + ", primitive " + nanos(primitive, n)
+                    + ", spun " + nanos(spun, n) + ", spun primitive " + nanos(spunPrimitive, n) + " per row");
+        }
+        System.out.println("checksum " + sink);
+    }
+
+    private static String nanos(long elapsed, int n) {
+        return elapsed / n + "." + (elapsed * 10 / n) % 10 + " ns";
+    }
+}
@@ -0,0 +1,73 @@
+package common.db.util;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class FieldAccessorTest extends TestCase {
+    public enum Status { NEW, DONE }
+
+    public static class Row {
+        public long count;
+        public int score;
+        public double ratio;
+        public boolean active;
+        public String name;
+        public Date seen;
+        public Status status;
+        public byte[] data;
+        private String hidden;
+    }
+
+    public void testSpunAccessorsReadAndWrite() throws Exception {
+        Row row = new Row();
+        FieldAccessor count = spun("count");
+        count.setLong(row, 7);
+        assertEquals(7L, count.getLong(row));
+        count.set(row, 8L);
+        assertEquals(8L, count.get(row));
+        assertEquals(8, count.getInt(row));
+
+        FieldAccessor score = spun("score");
+        score.setInt(row, 3);
+        score.set(row, score.getInt(row) + 1);
+        assertEquals(4, row.score);
+        score.setLong(row, 5);
+        assertEquals(5L, score.getLong(row));
+
+        FieldAccessor ratio = spun("ratio");
+        ratio.setDouble(row, 0.5);
+        assertEquals(0.5, ratio.getDouble(row));
+        assertEquals(0.5, ratio.get(row));
+
+        FieldAccessor active = spun("active");
+        active.set(row, true);
+        assertEquals(Boolean.TRUE, active.get(row));
+
+        Date now = new Date();
+        spun("seen").set(row, now);
+        spun("status").set(row, Status.DONE);
+        spun("data").set(row, new byte[] {1});
+        spun("name").set(row, "a");
+        assertSame(now, row.seen);
+        assertEquals(Status.DONE, row.status);
+        assertEquals(1, row.data.length);
+        assertEquals("a", spun("name").get(row));
+        spun("name").set(row, null);
+        assertNull(row.name);
+    }
+
+    public void testPrivateFieldsUseReflection() throws Exception {
+        FieldAccessor hidden = FieldAccessor.of(Row.class.getDeclaredField("hidden"));
+        assertEquals(FieldAccessor.class, hidden.getClass());
+        Row row = new Row();
+        hidden.set(row, "secret");
+        assertEquals("secret", hidden.get(row));
+    }
+
+    private static FieldAccessor spun(String name) throws Exception {
+        FieldAccessor accessor = FieldAccessor.of(Row.class.getField(name));
+        assertTrue(accessor.getClass() != FieldAccessor.class);
+        return accessor;
+    }
+}
@@ -0,0 +1,43 @@
+package common.db.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * Insert throughput of random vs time ordered ids into a varchar primary key.
+ * Usage: GuidInsertBenchmark jdbcUrl user password [rows] [batch], with the
+ * JDBC driver on the classpath. Drops and recreates table guid_bench.
+ */
+public class GuidInsertBenchmark {
+    public static void main(String[] args) {
+        DriverManagerDataSource ds = new DriverManagerDataSource(args[0], args[1], args.length > 2 ? args[2] : "");
+        int rows = args.length > 3 ? Integer.parseInt(args[3]) : 1000000;
+        int batch = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        JdbcTemplate jc = new JdbcTemplate(ds);
+
+        for(int round=0; round<2; round++) {
+            for(boolean timeOrdered : new boolean[] {false, true}) {
+                jc.execute("drop table if exists guid_bench");
+                jc.execute("create table guid_bench (id varchar(39) not null primary key, payload varchar(64))");
+                long start = System.nanoTime();
+                List<Object[]> batchArgs = new ArrayList<Object[]>(batch);
+                for(int i=0; i<rows; i++) {
+                    short shardId = (short) (i & 0xf);
+                    String id = timeOrdered ? GUID.getTimeOrderedStringUuid(shardId) : GUID.getRandomStringUuid(shardId);
+                    batchArgs.add(new Object[] {id, "row " + i});
+                    if(batchArgs.size() == batch || i == rows - 1) {
+                        jc.batchUpdate("insert into guid_bench (id, payload) values (?, ?)", batchArgs);
+                        batchArgs.clear();
+                    }
+                }
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("round " + round + " " + (timeOrdered ? "time ordered" : "random") + ": " + rows + " rows in " + millis + " ms, "
+                        + (rows * 1000L / Math.max(1, millis)) + " rows/s");
+            }
+        }
+        jc.execute("drop table if exists guid_bench");
+    }
+}
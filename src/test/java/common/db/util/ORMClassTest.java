@@ -0,0 +1,88 @@
+package common.db.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+public class ORMClassTest extends TestCase {
+    public static class Person {
+        public String id;
+        public String name;
+        public String city;
+        public int age;
+        public long updated;
+    }
+
+    private ORMClass<Person> orm = new ORMClass<Person>(Person.class);
+    private NamedParameterJdbcTemplate jc;
+
+    @Override
+    protected void setUp() throws Exception {
+        DriverManagerDataSource ds = new DriverManagerDataSource("jdbc:h2:mem:" + getName() + ";DB_CLOSE_DELAY=-1;MODE=MySQL", "sa", "");
+        new JdbcTemplate(ds).execute("drop table if exists Person");
+        new JdbcTemplate(ds).execute("create table Person(id varchar(64) primary key, name varchar(64), city varchar(64), age int, updated bigint)");
+        jc = new NamedParameterJdbcTemplate(ds);
+        orm.insert(jc, person("a", "ann", "oslo", 30), false);
+        orm.insert(jc, person("b", "bob", "oslo", 40), false);
+        orm.insert(jc, person("c", "ann", "rome", 30), false);
+    }
+
+    public void testColumnOrderOfMapsDoesNotMatter() {
+        assertEquals("a", orm.query(jc, where("name", "ann", "city", "oslo")).get(0).id);
+        assertEquals("c", orm.query(jc, where("city", "rome", "name", "ann")).get(0).id);
+        assertEquals(2, orm.query(jc, where("age", 30)).size());
+
+        orm.update(jc, where("name", "bea", "age", 41), where("id", "b"));
+        orm.update(jc, where("age", 31, "name", "cid"), where("id", "c"));
+        Person b = orm.getById(jc, "b");
+        Person c = orm.getById(jc, "c");
+        assertEquals("bea", b.name);
+        assertEquals(41, b.age);
+        assertEquals("cid", c.name);
+        assertEquals(31, c.age);
+        assertTrue(c.updated > 0);
+
+        assertEquals(0, orm.delete(jc, where("city", "oslo", "name", "ann", "age", 1)));
+        assertEquals(1, orm.delete(jc, where("age", 30, "name", "ann", "city", "oslo")));
+        assertEquals(1, orm.delete(jc, where("city", "oslo")));
+        List<Person> left = orm.query(jc, new HashMap<String, Object>());
+        assertEquals(1, left.size());
+    }
+
+    public void testCallerArraysAreNotShared() {
+        String[] columns = {"name"};
+        Person a = orm.getById(jc, "a");
+        a.name = "amy";
+        a.age = 99;
+        orm.update(jc, a, columns, new String[] {"id"});
+        columns[0] = "age";
+        orm.update(jc, a, new String[] {"name"}, new String[] {"id"});
+        Person read = orm.getById(jc, "a");
+        assertEquals("amy", read.name);
+        assertEquals(30, read.age);
+    }
+
+    private static Person person(String id, String name, String city, int age) {
+        Person person = new Person();
+        person.id = id;
+        person.name = name;
+        person.city = city;
+        person.age = age;
+        return person;
+    }
+
+    private static Map<String, Object> where(Object... pairs) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for(int i=0; i<pairs.length; i+=2) {
+            map.put((String) pairs[i], pairs[i+1]);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,17 @@
+package common.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class MultiTaskTest extends TestCase {
+	public void testNoTasks() {
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		try {
+			new MultiTask().execute(es);
+		} finally {
+			es.shutdownNow();
+		}
+	}
+}